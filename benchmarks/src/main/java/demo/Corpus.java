@@ -0,0 +1,231 @@
+package demo;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated corpus of TXT, DOCX and PDF files, used by the benchmarks.
+ * <p/>
+ * Text is drawn from a fixed vocabulary using a fixed seed, so the corpus
+ * (its extracted text, that is) is the same on every run and on every
+ * machine. It is generated once, under target/corpus, and reused by later
+ * runs as long as {@link #VERSION} is unchanged.
+ */
+final class Corpus {
+    static final int VERSION = 1;
+
+    static final int FILES_PER_TYPE = 20;
+    static final int FILES = 3 * FILES_PER_TYPE;
+    static final int PARAGRAPHS_PER_FILE = 40;
+    static final int WORDS_PER_PARAGRAPH = 60;
+
+    // Words known to be in the corpus, for the search benchmarks
+    static final String COMMON_WORD = "avtal";
+    static final String RARE_WORD = "leverantörsreskontra";
+
+    private static final String[] WORDS = {
+            "avtal", "kontrakt", "leverans", "faktura", "betalning", "villkor", "part", "parter",
+            "ansvar", "skada", "försäkring", "uppsägning", "tid", "pris", "kostnad", "moms",
+            "kund", "leverantör", "tjänst", "tjänster", "produkt", "produkter", "garanti", "fel",
+            "brist", "reklamation", "ersättning", "vite", "sekretess", "information", "uppgifter",
+            "personuppgifter", "behandling", "ändring", "tillägg", "bilaga", "bilagor", "giltighet",
+            "datum", "år", "månad", "dag", "vecka", "kvartal", "budget", "projekt", "beställning",
+            "order", "offert", "anbud", "upphandling", "myndighet", "kommun", "region", "bolag",
+            "styrelse", "protokoll", "beslut", "möte", "ordförande", "sekreterare", "justering",
+            "och", "att", "det", "som", "en", "på", "är", "av", "för", "med", "till", "den",
+            "har", "de", "inte", "om", "ett", "men", "vi", "ska", "kan", "från", "eller", "när",
+            "enligt", "samt", "detta", "denna", "dessa", "under", "efter", "innan", "genom", "utan",
+            "arkiv", "dokument", "handling", "handlingar", "diarium", "ärende", "registrering",
+            "gallring", "bevarande", "förvaring", "digital", "elektronisk", "format", "fil", "filer",
+            "sökning", "index", "register", "katalog", "mapp", "version", "utgåva", "kopia", "original"
+    };
+
+    private Corpus() {
+    }
+
+    /**
+     * Returns the corpus directory, generating the corpus if needed.
+     */
+    static synchronized Path get() throws IOException {
+        Path directory = Paths.get("target", "corpus").toAbsolutePath();
+        Path marker = directory.resolve(".version-" + VERSION);
+        if (Files.exists(marker)) {
+            return directory;
+        }
+
+        Files.createDirectories(directory.resolve("txt"));
+        Files.createDirectories(directory.resolve("docx"));
+        Files.createDirectories(directory.resolve("pdf"));
+
+        Random random = new Random(20240101L);
+        for (int i = 0; i < FILES_PER_TYPE; i++) {
+            writeText(directory.resolve("txt").resolve(String.format("text-%03d.txt", i)), paragraphs(random));
+            writeDocx(directory.resolve("docx").resolve(String.format("document-%03d.docx", i)), paragraphs(random));
+            writePdf(directory.resolve("pdf").resolve(String.format("document-%03d.pdf", i)), paragraphs(random));
+        }
+
+        Files.createFile(marker);
+        return directory;
+    }
+
+    /**
+     * Generates text (with some upper case, digits and punctuation) of
+     * approximately the given number of characters.
+     */
+    static String text(Random random, int characters) {
+        StringBuilder sb = new StringBuilder(characters + 32);
+        while (sb.length() < characters) {
+            sb.append(sentence(random)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static List<String> paragraphs(Random random) {
+        List<String> paragraphs = new ArrayList<>(PARAGRAPHS_PER_FILE);
+        for (int i = 0; i < PARAGRAPHS_PER_FILE; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 0;
+            while (words < WORDS_PER_PARAGRAPH) {
+                String sentence = sentence(random);
+                words += sentence.split(" ").length;
+                sb.append(sentence).append(' ');
+            }
+            if (random.nextInt(10) == 0) {
+                sb.append(RARE_WORD).append('.');
+            }
+            paragraphs.add(sb.toString().trim());
+        }
+        return paragraphs;
+    }
+
+    private static String sentence(Random random) {
+        int length = 4 + random.nextInt(12);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (i == 0) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            } else {
+                sb.append(' ');
+            }
+            sb.append(word);
+            if (random.nextInt(25) == 0) {
+                sb.append(' ').append(random.nextInt(100_000));
+            }
+        }
+        return sb.append(random.nextInt(8) == 0 ? ',' : '.').toString();
+    }
+
+    private static void writeText(Path path, List<String> paragraphs) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (String paragraph : paragraphs) {
+                writer.write(paragraph);
+                writer.write("\n\n");
+            }
+        }
+    }
+
+    private static void writeDocx(Path path, List<String> paragraphs) throws IOException {
+        try (XWPFDocument document = new XWPFDocument();
+             OutputStream os = Files.newOutputStream(path)) {
+            for (String paragraph : paragraphs) {
+                document.createParagraph().createRun().setText(paragraph);
+            }
+            document.write(os);
+        }
+    }
+
+    private static void writePdf(Path path, List<String> paragraphs) throws IOException {
+        final float fontSize = 10f;
+        final float leading = 1.4f * fontSize;
+        final float margin = 50f;
+        final int charactersPerLine = 95;
+
+        try (PDDocument document = new PDDocument()) {
+            PDRectangle pageSize = PDRectangle.A4;
+            PDPageContentStream content = null;
+            float y = 0f;
+            try {
+                for (String paragraph : paragraphs) {
+                    for (String line : wrap(paragraph, charactersPerLine)) {
+                        if (null == content || y < margin) {
+                            if (null != content) {
+                                content.endText();
+                                content.close();
+                            }
+                            PDPage page = new PDPage(pageSize);
+                            document.addPage(page);
+                            content = new PDPageContentStream(document, page);
+                            content.beginText();
+                            content.setFont(PDType1Font.HELVETICA, fontSize);
+                            content.setLeading(leading);
+                            y = pageSize.getHeight() - margin;
+                            content.newLineAtOffset(margin, y);
+                        }
+                        // Standard 14 fonts use WinAnsiEncoding, which covers å, ä and ö
+                        content.showText(line);
+                        content.newLine();
+                        y -= leading;
+                    }
+                    content.newLine();
+                    y -= leading;
+                }
+            } finally {
+                if (null != content) {
+                    content.endText();
+                    content.close();
+                }
+            }
+            document.save(path.toFile());
+        }
+    }
+
+    private static List<String> wrap(String paragraph, int width) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        for (String word : paragraph.split(" ")) {
+            if (line.length() > 0 && line.length() + 1 + word.length() > width) {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(word);
+        }
+        if (line.length() > 0) {
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Writes a Tika configuration, from the template shipped with disksearch,
+     * unless one already exists.
+     */
+    static File tikaConfig() throws IOException {
+        File tikaConfigFile = Paths.get("target", "tika-config.xml").toAbsolutePath().toFile();
+        if (!tikaConfigFile.exists()) {
+            try (InputStream is = Scanner.class.getResourceAsStream("tika-config-template.xml")) {
+                if (null == is) {
+                    throw new FileNotFoundException("No Tika configuration template on class path");
+                }
+                Files.copy(is, tikaConfigFile.toPath());
+            }
+        }
+        return tikaConfigFile;
+    }
+}
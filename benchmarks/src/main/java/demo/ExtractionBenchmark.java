@@ -0,0 +1,62 @@
+package demo;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction throughput, in files per second, of the Scanner running Tika
+ * over the generated corpus and a consumer that just drains the extracted
+ * text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class ExtractionBenchmark {
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path corpus;
+    private Scanner scanner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = Corpus.get();
+        Options options = new Options(new String[]{"--threads=" + threads});
+        scanner = new Scanner(Corpus.tikaConfig(), "=index=", options);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.FILES)
+    public long extract(Blackhole blackhole) throws Exception {
+        Set<String> observedContentTypes = ConcurrentHashMap.newKeySet();
+        return scanner.scanDirectory(
+                corpus.toFile(), observedContentTypes,
+                /* per directory */ directory -> { },
+                /* per file */ (path, entry, contentType, major, minor, reader) -> {
+                    blackhole.consume(drain(reader));
+                    return true;
+                });
+    }
+
+    // Called concurrently, from the consumers of the scan
+    private long drain(Reader reader) throws java.io.IOException {
+        char[] buffer = new char[8192];
+        long characters = 0L;
+        int num;
+        while ((num = reader.read(buffer, 0, buffer.length)) > 0) {
+            characters += num;
+        }
+        return characters;
+    }
+}
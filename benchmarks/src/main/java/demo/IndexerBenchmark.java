@@ -0,0 +1,59 @@
+package demo;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.sv.SwedishAnalyzer;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing throughput, in documents per second, of the Indexer over the
+ * generated corpus (including extraction), into an index in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class IndexerBenchmark {
+
+    @Param({"default", "bulk"})
+    public String profile;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path corpus;
+    private File tikaConfigFile;
+    private Analyzer analyzer;
+    private Options options;
+    private PrintWriter out;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        corpus = Corpus.get();
+        tikaConfigFile = Corpus.tikaConfig();
+        analyzer = new SwedishAnalyzer();
+        options = new Options(new String[]{
+                "--profile=" + profile, "--threads=" + threads, "--index-threads=" + threads, "--progress=0"
+        });
+        out = new PrintWriter(Writer.nullWriter());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.FILES)
+    public Directory index() throws Exception {
+        Directory directory = new ByteBuffersDirectory();
+        Scanner scanner = new Scanner(tikaConfigFile, "=index=", options);
+        Indexer indexer = new Indexer(directory, analyzer, scanner, options);
+        indexer.indexDirectory(corpus.toFile(), out);
+        return directory;
+    }
+}
@@ -0,0 +1,111 @@
+package demo;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.sv.SwedishAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency, including query parsing, over an index of the generated
+ * corpus held in memory, as one index or split into shards, and with or
+ * without suffix fields for leading wildcard and substring queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class SearcherBenchmark {
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"false", "true"})
+    public boolean suffixFields;
+
+    private Analyzer analyzer;
+    private List<Directory> directories;
+    private IndexReader reader;
+    private ExecutorService executor;
+    private IndexSearcher searcher;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        analyzer = new SwedishAnalyzer();
+        directories = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            directories.add(new ByteBuffersDirectory());
+        }
+
+        Options options = new Options(new String[]{"--progress=0", "--suffix-fields=" + suffixFields});
+        Scanner scanner = new Scanner(Corpus.tikaConfig(), "=index=", options);
+        Indexer indexer = new Indexer(directories, analyzer, scanner, options);
+        indexer.indexDirectory(Corpus.get().toFile(), new PrintWriter(Writer.nullWriter()));
+
+        reader = Shards.openReader(directories);
+        executor = Shards.newExecutor(directories);
+        searcher = Shards.newSearcher(reader, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        reader.close();
+        if (null != executor) {
+            executor.shutdown();
+        }
+        for (Directory directory : directories) {
+            directory.close();
+        }
+    }
+
+    private TopDocs search(String field, String input) throws Exception {
+        return searcher.search(Searcher.buildQuery(Searcher.newQueryParser(field, analyzer, reader), field, input), 100);
+    }
+
+    @Benchmark
+    public TopDocs term() throws Exception {
+        return search("content", Corpus.COMMON_WORD);
+    }
+
+    @Benchmark
+    public TopDocs rareTerm() throws Exception {
+        return search("content", Corpus.RARE_WORD);
+    }
+
+    @Benchmark
+    public TopDocs wildcard() throws Exception {
+        return search("content", "leverant*");
+    }
+
+    @Benchmark
+    public TopDocs leadingWildcard() throws Exception {
+        return search("content", "*ning");
+    }
+
+    @Benchmark
+    public TopDocs substring() throws Exception {
+        return search("content", "*ntörs*");
+    }
+
+    @Benchmark
+    public TopDocs filenameSubstring() throws Exception {
+        return search("filename", "*ment-00*");
+    }
+
+    @Benchmark
+    public TopDocs filename() throws Exception {
+        return search("filename", "document-007.pdf");
+    }
+}
@@ -0,0 +1,101 @@
+package demo.filters;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the character and byte filters, over 1 MB of input per
+ * operation. Input is mostly (Swedish) text with a fraction of characters
+ * outside of Latin-1, or of binary bytes, mixed in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FiltersBenchmark {
+    private static final int SIZE = 1024 * 1024;
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyzåäöABCDEFGHIJKLMNOPQRSTUVWXYZÅÄÖ0123456789";
+
+    @Param({"8192"})
+    public int bufferSize;
+
+    private char[] text;
+    private byte[] binary;
+    private char[] charBuffer;
+    private byte[] byteBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42L);
+
+        text = new char[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            int r = random.nextInt(100);
+            if (r < 15) {
+                text[i] = ' ';
+            } else if (r < 17) {
+                text[i] = (char) ('Ā' + random.nextInt(0x2000)); // beyond Latin-1
+            } else if (r < 19) {
+                text[i] = ".,;:-\n".charAt(random.nextInt(6));
+            } else {
+                text[i] = LETTERS.charAt(random.nextInt(LETTERS.length()));
+            }
+        }
+
+        // Text with stretches of binary data, as in e.g. an executable
+        byte[] textBytes = new String(text).getBytes(StandardCharsets.ISO_8859_1);
+        binary = new byte[SIZE];
+        for (int i = 0; i < SIZE; ) {
+            int run = 16 + random.nextInt(240);
+            boolean isBinary = random.nextInt(3) == 0;
+            for (int j = 0; j < run && i < SIZE; j++, i++) {
+                binary[i] = isBinary ? (byte) random.nextInt(256) : textBytes[i];
+            }
+        }
+
+        charBuffer = new char[bufferSize];
+        byteBuffer = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public void binaryFilterReader(Blackhole blackhole) throws IOException {
+        try (BinaryFilterReader reader = new BinaryFilterReader(new CharArrayReader(text))) {
+            int num;
+            while ((num = reader.read(charBuffer, 0, charBuffer.length)) > 0) {
+                blackhole.consume(charBuffer);
+                blackhole.consume(num);
+            }
+        }
+    }
+
+    @Benchmark
+    public void binaryFilterReaderFullBmp(Blackhole blackhole) throws IOException {
+        try (BinaryFilterReader reader = new BinaryFilterReader(new CharArrayReader(text), true)) {
+            int num;
+            while ((num = reader.read(charBuffer, 0, charBuffer.length)) > 0) {
+                blackhole.consume(charBuffer);
+                blackhole.consume(num);
+            }
+        }
+    }
+
+    @Benchmark
+    public void stringsFilterInputStream(Blackhole blackhole) throws IOException {
+        try (StringsFilterInputStream is = new StringsFilterInputStream(new ByteArrayInputStream(binary), 4, 40)) {
+            int num;
+            while ((num = is.read(byteBuffer, 0, byteBuffer.length)) > 0) {
+                blackhole.consume(byteBuffer);
+                blackhole.consume(num);
+            }
+        }
+    }
+}
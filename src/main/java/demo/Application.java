@@ -4,13 +4,19 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.sv.SwedishAnalyzer;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public class Application {
     private static Logger log = LogManager.getLogger(Application.class);
@@ -22,22 +28,27 @@ public class Application {
         PrintWriter out = new PrintWriter(System.out);
 
         try {
+            Options options = new Options(args);
+            List<String> arguments = options.arguments();
+            Metrics.start(options);
+
             // Setup Lucene index location
             Path indexPath = Paths.get(System.getProperty("user.dir"), INDEX_NAME);
-            Directory indexDirectory = new NIOFSDirectory(indexPath);
+            boolean searching = !arguments.isEmpty() && ("search".equals(arguments.get(0)) || "serve".equals(arguments.get(0)));
+            List<Directory> indexDirectories = openIndexDirectories(indexPath, options, searching);
 
             // Assume swedish language resources (mainly)
             Analyzer analyzer = new SwedishAnalyzer();
 
-            if (args.length > 0) {
-                switch (args[0]) {
+            if (!arguments.isEmpty()) {
+                switch (arguments.get(0)) {
                     case "convert":
-                        if (args.length > 1) {
+                        if (arguments.size() > 1) {
                             File tikaConfigFile = new File("tika-config.xml");
                             if (Scanner.prepare(tikaConfigFile)) {
-                                Scanner scanner = new Scanner(tikaConfigFile, INDEX_NAME);
-                                Converter converter = new Converter(scanner);
-                                File sourceDirectory = new File(args[1]);
+                                Scanner scanner = new Scanner(tikaConfigFile, INDEX_NAME, options);
+                                Converter converter = new Converter(scanner, options);
+                                File sourceDirectory = new File(arguments.get(1));
                                 converter.convertDirectory(sourceDirectory, out);
                             }
                         } else {
@@ -47,12 +58,12 @@ public class Application {
                         break;
 
                     case "index":
-                        if (args.length > 1) {
+                        if (arguments.size() > 1) {
                             File tikaConfigFile = new File("tika-config.xml");
                             if (Scanner.prepare(tikaConfigFile)) {
-                                Scanner scanner = new Scanner(tikaConfigFile, INDEX_NAME);
-                                Indexer indexer = new Indexer(indexDirectory, analyzer, scanner);
-                                File sourceDirectory = new File(args[1]);
+                                Scanner scanner = new Scanner(tikaConfigFile, INDEX_NAME, options);
+                                Indexer indexer = new Indexer(indexDirectories, analyzer, scanner, options);
+                                File sourceDirectory = new File(arguments.get(1));
                                 indexer.indexDirectory(sourceDirectory, out);
                             }
                         } else {
@@ -61,28 +72,182 @@ public class Application {
                         }
                         break;
 
+                    case "watch":
+                        if (arguments.size() > 1) {
+                            File tikaConfigFile = new File("tika-config.xml");
+                            if (Scanner.prepare(tikaConfigFile)) {
+                                Scanner scanner = new Scanner(tikaConfigFile, INDEX_NAME, options);
+                                // Unchanged files are skipped when (re-)scanning, and changes replace documents
+                                Indexer indexer = new Indexer(indexDirectories, analyzer, scanner, options.set("incremental", "true"));
+                                SearchService service = options.getBoolean("serve", false) ? new SearchService(indexDirectories, analyzer, options) : null;
+                                Watcher watcher = new Watcher(indexDirectories, indexer, scanner, service, options);
+                                File sourceDirectory = new File(arguments.get(1));
+                                watcher.watch(sourceDirectory, out);
+                            }
+                        } else {
+                            String info = "You need to provide path to directory";
+                            out.println(info);
+                        }
+                        break;
+
                     case "search":
                         String field = "content"; // default
-                        if (args.length > 1) {
-                            field = args[1];
+                        if (arguments.size() > 1) {
+                            field = arguments.get(1);
                         }
-                        Searcher searcher = new Searcher(indexDirectory, analyzer);
+                        Searcher searcher = new Searcher(indexDirectories, analyzer, options);
                         searcher.search(field, out);
                         break;
 
+                    case "serve":
+                        SearchService service = new SearchService(indexDirectories, analyzer, options);
+                        service.serve(out);
+                        break;
+
                     default:
-                        String info = "Unknown function: " + args[0];
+                        String info = "Unknown function: " + arguments.get(0);
                         out.println(info);
                 }
             } else {
-                String info = "usage: index <directory> | convert <directory> | search [filename|path|content-type|content]";
+                String info = "usage: index <directory> | convert <directory> | watch <directory> | search [filename|path|content-type|content] | serve";
+                out.println(info);
+                info = "options (index, convert, watch): --threads=<n> [--virtual-threads] [--queue-size=<n>] --buffer-size=<chars> [--unicode-filter]";
+                out.println(info);
+                info = "options (index, convert, watch): --index-threads=<n> (default as --threads) --progress=<seconds>";
+                out.println(info);
+                info = "options (index, convert, watch): --timeout=<seconds> --max-chars=<n> --metadata-only-on-timeout";
+                out.println(info);
+                info = "options (index, convert, watch): --fork [--fork-heap=<size>] [--fork-max-files=<n>]";
+                out.println(info);
+                info = "options (index, convert, watch): --skip-types=<major type or type>,...";
+                out.println(info);
+                info = "options (index, convert, watch): --strings=true|false --strings-min=<n> --strings-max=<n>";
+                out.println(info);
+                info = "options (index, convert, watch): --cache [--cache-dir=<directory>] [--cache-max-mb=<mb>]";
+                out.println(info);
+                info = "options (index, convert, watch): --embedded [--max-embedded-depth=<n>] [--max-embedded=<n>]";
+                out.println(info);
+                info = "options (convert): --output=<directory> | --bundle=<file>, --compress=none|gzip";
+                out.println(info);
+                info = "options (index): --incremental [--hash] | --dedup";
+                out.println(info);
+                info = "options (index): --checkpoint-interval=<seconds> --resume";
+                out.println(info);
+                info = "options (index, watch): --shards=<n> --suffix-fields";
+                out.println(info);
+                info = "options (index, watch): --profile=default|bulk|low-latency --ram-buffer-mb=<mb> --merge-threads=<n> --force-merge=<segments>";
+                out.println(info);
+                info = "options (watch): [--hash] --watch-delay=<ms> --commit-interval=<seconds> --rescan-interval=<seconds> --serve [serve options]";
+                out.println(info);
+                info = "options (search): --page-size=<n> --count-threshold=<n>";
+                out.println(info);
+                info = "options (search): --facets --sort=relevance|size|modified[:asc] --min-size=<bytes> --max-size=<bytes> --modified-after=<date> --modified-before=<date>";
+                out.println(info);
+                info = "options (serve): --port=<port> --refresh-interval=<ms> --max-hits=<n> --count-threshold=<n>";
+                out.println(info);
+                info = "options (all): --directory=mmap|nio|auto [--preload[=tip,tim,doc,...]] [--nrt-cache]";
+                out.println(info);
+                info = "options (all): --metrics-file=<file.json or file.prom> --metrics-interval=<seconds>";
                 out.println(info);
             }
         } catch (Exception e) {
             String info = "Failed: " + e.getMessage();
             log.warn(info, e);
+        } finally {
+            Metrics.stop();
         }
 
         out.flush();
     }
+
+    /*
+     * Opens the index, or its shards. The number of shards is decided when the
+     * index is created, and later runs use the shards that exist.
+     */
+    private static List<Directory> openIndexDirectories(Path indexPath, Options options, boolean searching) throws IOException {
+        int existing = 0;
+        while (Files.isDirectory(indexPath.resolve(Shards.PREFIX + existing))) {
+            existing++;
+        }
+
+        int requested = options.getInt("shards", 0);
+        if (requested > 0 && existing > 0 && requested != existing) {
+            throw new IllegalArgumentException("Index has " + existing + " shard(s), not " + requested);
+        }
+        int shards = requested > 0 ? requested : Math.max(1, existing);
+        if (shards == 1) {
+            return List.of(openIndexDirectory(indexPath, options, searching));
+        }
+
+        if (existing == 0 && Files.isDirectory(indexPath)) {
+            try (Stream<Path> files = Files.list(indexPath)) {
+                if (files.anyMatch(file -> file.getFileName().toString().startsWith("segments"))) {
+                    throw new IllegalArgumentException("Index is not sharded, remove " + indexPath + " to create a sharded index");
+                }
+            }
+        }
+
+        List<Directory> directories = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            directories.add(openIndexDirectory(indexPath.resolve(Shards.PREFIX + i), options, searching));
+        }
+        return directories;
+    }
+
+    /*
+     * Opens an index directory. Searching defaults to memory mapping the index,
+     * so that postings are served straight from the page cache, while indexing
+     * defaults to NIO.
+     */
+    private static Directory openIndexDirectory(Path indexPath, Options options, boolean searching) throws IOException {
+        String implementation = options.get("directory", searching ? "mmap" : "nio");
+
+        Directory directory;
+        switch (implementation) {
+            case "mmap":
+                MMapDirectory mmapDirectory = new MMapDirectory(indexPath);
+                if (options.has("preload")) {
+                    // Terms index, terms dictionary and postings, unless told otherwise
+                    String value = options.get("preload", "true");
+                    Set<String> extensions = new HashSet<>(List.of("tip", "tim", "doc"));
+                    if (!"true".equals(value)) {
+                        extensions.clear();
+                        for (String extension : value.split(",")) {
+                            if (!extension.isBlank()) {
+                                extensions.add(extension.trim().replaceFirst("^\\.", ""));
+                            }
+                        }
+                    }
+                    mmapDirectory.setPreload((name, context) -> {
+                        int dot = name.lastIndexOf('.');
+                        return dot >= 0 && extensions.contains(name.substring(dot + 1));
+                    });
+                }
+                directory = mmapDirectory;
+                break;
+
+            case "nio":
+                directory = new NIOFSDirectory(indexPath);
+                break;
+
+            case "auto":
+                directory = FSDirectory.open(indexPath);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown directory implementation: " + implementation + " (expected mmap, nio or auto)");
+        }
+
+        if (options.getBoolean("nrt-cache", false)) {
+            // Keeps small, newly flushed segments in memory until they are committed or merged
+            directory = new NRTCachingDirectory(directory,
+                    options.getInt("nrt-cache-max-merge-mb", 5),
+                    options.getInt("nrt-cache-max-mb", 64));
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Index directory: " + directory);
+        }
+        return directory;
+    }
 }
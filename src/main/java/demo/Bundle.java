@@ -0,0 +1,155 @@
+package demo;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A single, append-only file of extracted texts, with an index of where
+ * each text starts. Writing millions of small files is mostly file system
+ * overhead, which a bundle avoids.
+ * <p/>
+ * The index is a text file next to the bundle (with suffix ".idx"), with a
+ * line per text holding offset and length in the bundle, content type and
+ * path of the file it was extracted from, separated by tabs. Texts are
+ * UTF-8 encoded and, if compressed, every text is a gzip member of its own,
+ * so that any text can be read without reading those before it.
+ * <p/>
+ * Texts may be appended concurrently. A text is prepared on the side (in
+ * memory or, if large, in a temporary file) and then appended as a whole.
+ */
+class Bundle implements Closeable {
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IN_MEMORY = 4 * 1024 * 1024; // bytes, per text being prepared
+
+    private final Path file;
+    private final boolean compress;
+
+    private final FileChannel channel; // guarded by this
+    private final Writer index; // guarded by this
+
+    private Bundle(Path file, boolean compress, FileChannel channel, Writer index) {
+        this.file = file;
+        this.compress = compress;
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * Opens (or creates) bundle, appending to whatever it already holds.
+     */
+    static Bundle open(Path file, boolean compress) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (null != parent) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            Writer index = Files.newBufferedWriter(indexOf(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return new Bundle(file, compress, channel, index);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static Path indexOf(Path file) {
+        return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Appends text read from reader, extracted from path or, if entry is not
+     * null, from an entry of path (which is then indexed as "path#entry").
+     */
+    void append(Path path, String entry, String contentType, Reader reader) throws IOException {
+        Spill spill = new Spill();
+        try {
+            OutputStream os = compress ? new GZIPOutputStream(spill, BUFFER_SIZE) : spill;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                reader.transferTo(writer);
+            }
+
+            synchronized (this) {
+                long offset = channel.size();
+                spill.transferTo(channel);
+                index.write(offset + "\t" + spill.size + "\t" + contentType + "\t" + path.toAbsolutePath() + (null != entry ? "#" + entry : "") + "\n");
+            }
+        } finally {
+            spill.discard();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    /*
+     * A text being prepared, kept in memory until it grows large, at which point
+     * it is moved to a temporary file.
+     */
+    private final class Spill extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(BUFFER_SIZE);
+        private Path tmp = null;
+        private OutputStream os = memory;
+        private long size = 0L;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (null == tmp && size + len > MAX_IN_MEMORY) {
+                tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+                os = new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE);
+                memory.writeTo(os);
+                memory = null;
+            }
+            os.write(b, off, len);
+            size += len;
+        }
+
+        void transferTo(FileChannel target) throws IOException {
+            if (null == tmp) {
+                memory.writeTo(Channels.newOutputStream(target));
+                return;
+            }
+            try (FileChannel source = FileChannel.open(tmp, StandardOpenOption.READ)) {
+                long position = 0L;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+
+        void discard() throws IOException {
+            if (null != tmp) {
+                os.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
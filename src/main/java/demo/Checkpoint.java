@@ -0,0 +1,142 @@
+package demo;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Progress of a crawl, committed with the index (as commit user data) every
+ * so often, so that a crawl that is interrupted can be resumed rather than
+ * started over.
+ * <p/>
+ * A directory is completed when all files below it have been indexed. Only
+ * the outermost completed directories are kept, since a completed directory
+ * covers everything below it, and the files directly in the crawled directory
+ * are never covered until the crawl is done, at which point the checkpoint is
+ * removed.
+ * <p/>
+ * Directories may be completed concurrently.
+ */
+class Checkpoint {
+    private static final String ROOT = "checkpoint.root";
+    private static final String SEQUENCE = "checkpoint.sequence";
+    private static final String COMPLETED = "checkpoint.completed";
+    private static final String LAST_COMPLETED = "checkpoint.last-completed";
+    private static final String FILES = "checkpoint.files";
+    private static final String CONTENT_TYPES = "checkpoint.content-types";
+
+    private final String root;
+    private final long previousFiles; // processed by earlier, interrupted, runs
+
+    // Outermost completed directories, sorted so that those below a directory are adjacent
+    private final TreeSet<String> completed = new TreeSet<>(); // guarded by this
+    private final Set<String> previousContentTypes = new HashSet<>();
+    private String lastCompleted = null; // guarded by this
+    private long sequence = 0L; // guarded by this
+
+    private Checkpoint(String root, long previousFiles) {
+        this.root = root;
+        this.previousFiles = previousFiles;
+    }
+
+    /**
+     * A checkpoint for a new crawl of root.
+     */
+    static Checkpoint start(Path root) {
+        return new Checkpoint(root.toString(), 0L);
+    }
+
+    /**
+     * Reads the checkpoint of an interrupted crawl of root from the latest commit
+     * of every shard. Shards are committed one at a time, so the earliest of their
+     * checkpoints is the one that holds for all of them.
+     *
+     * @return checkpoint or null if there is no crawl of root to resume
+     */
+    static Checkpoint resume(List<Directory> shards, Path root) throws IOException {
+        Map<String, String> earliest = null;
+        for (Directory shard : shards) {
+            if (!DirectoryReader.indexExists(shard)) {
+                return null;
+            }
+            Map<String, String> userData = SegmentInfos.readLatestCommit(shard).getUserData();
+            if (!root.toString().equals(userData.get(ROOT))) {
+                return null;
+            }
+            if (null == earliest || Long.parseLong(userData.get(SEQUENCE)) < Long.parseLong(earliest.get(SEQUENCE))) {
+                earliest = userData;
+            }
+        }
+        if (null == earliest) {
+            return null;
+        }
+
+        Checkpoint checkpoint = new Checkpoint(root.toString(), Long.parseLong(earliest.get(FILES)));
+        checkpoint.sequence = Long.parseLong(earliest.get(SEQUENCE));
+        checkpoint.lastCompleted = earliest.get(LAST_COMPLETED);
+        checkpoint.completed.addAll(lines(earliest.get(COMPLETED)));
+        checkpoint.previousContentTypes.addAll(lines(earliest.get(CONTENT_TYPES)));
+        return checkpoint;
+    }
+
+    private static List<String> lines(String value) {
+        return null == value || value.isEmpty() ? List.of() : List.of(value.split("\n"));
+    }
+
+    /**
+     * Records that everything below directory has been indexed.
+     */
+    synchronized void completed(Path directory) {
+        String path = directory.toAbsolutePath().normalize().toString();
+        // Subdirectories have been completed before, and are now covered by directory
+        completed.subSet(path + File.separator, path + File.separator + Character.MAX_VALUE).clear();
+        completed.add(path);
+        lastCompleted = path;
+    }
+
+    /**
+     * Whether path (of a file or directory) is below a completed directory.
+     */
+    synchronized boolean covers(Path path) {
+        for (Path p = path.toAbsolutePath().normalize(); null != p; p = p.getParent()) {
+            if (completed.contains(p.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized String lastCompleted() {
+        return lastCompleted;
+    }
+
+    long previousFiles() {
+        return previousFiles;
+    }
+
+    Set<String> previousContentTypes() {
+        return previousContentTypes;
+    }
+
+    /**
+     * Commit user data for the next checkpoint, given files processed in this
+     * run and content types observed so far.
+     */
+    synchronized Map<String, String> next(long files, Collection<String> contentTypes) {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(ROOT, root);
+        userData.put(SEQUENCE, Long.toString(++sequence));
+        userData.put(COMPLETED, String.join("\n", completed));
+        if (null != lastCompleted) {
+            userData.put(LAST_COMPLETED, lastCompleted);
+        }
+        userData.put(FILES, Long.toString(previousFiles + files));
+        userData.put(CONTENT_TYPES, String.join("\n", new TreeSet<>(contentTypes)));
+        return userData;
+    }
+}
@@ -0,0 +1,212 @@
+package demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pipe of characters between a thread producing content (a Tika
+ * parser) and a thread consuming it (e.g. the analyzer of a TextField).
+ * <p/>
+ * The writer blocks while the buffer is full and the reader blocks while it
+ * is empty, so memory use is bounded by the buffer size and does not depend
+ * on the amount of content passing through.
+ * <p/>
+ * If the reader is closed before all content has been read, subsequent
+ * writes fail, which aborts the producer. If the producer fails, the reader
+ * gets an IOException once buffered content has been consumed.
+ */
+class ContentPipe {
+    private final char[] buffer;
+    private int head = 0; // position of next character to read
+    private int count = 0; // number of buffered characters
+
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+    private Throwable failure = null;
+
+    // Time spent by the writer waiting for the reader
+    private long writerBlockedNanos = 0L;
+    private long writerBlockedSince = 0L; // 0 when not blocked
+
+    private final ReentrantLock pipeLock = new ReentrantLock();
+    private final Condition notEmpty = pipeLock.newCondition();
+    private final Condition notFull = pipeLock.newCondition();
+
+    private final Writer writer = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                int num;
+                pipeLock.lock();
+                try {
+                    if (count == buffer.length && !readerClosed) {
+                        writerBlockedSince = System.nanoTime();
+                        try {
+                            while (count == buffer.length && !readerClosed) {
+                                await(notFull);
+                            }
+                        } finally {
+                            writerBlockedNanos += System.nanoTime() - writerBlockedSince;
+                            writerBlockedSince = 0L;
+                        }
+                    }
+                    if (readerClosed) {
+                        throw new IOException("Pipe closed by reader");
+                    }
+                    if (writerClosed) {
+                        throw new IOException("Pipe closed");
+                    }
+
+                    num = Math.min(len, buffer.length - count);
+                    int tail = (head + count) % buffer.length;
+                    int first = Math.min(num, buffer.length - tail);
+                    System.arraycopy(cbuf, off, buffer, tail, first);
+                    System.arraycopy(cbuf, off + first, buffer, 0, num - first);
+                    count += num;
+
+                    notEmpty.signal();
+                } finally {
+                    pipeLock.unlock();
+                }
+                off += num;
+                len -= num;
+            }
+        }
+
+        @Override
+        public void flush() {
+            /* nothing buffered on this side */
+        }
+
+        @Override
+        public void close() {
+            pipeLock.lock();
+            try {
+                writerClosed = true;
+                notEmpty.signalAll();
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+    };
+
+    private final Reader reader = new Reader() {
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            pipeLock.lock();
+            try {
+                while (count == 0 && !writerClosed && !readerClosed) {
+                    await(notEmpty);
+                }
+                if (readerClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (count == 0) {
+                    if (null != failure) {
+                        throw new IOException("Failed to extract content: " + failure.getMessage(), failure);
+                    }
+                    return -1;
+                }
+
+                int num = Math.min(len, count);
+                int first = Math.min(num, buffer.length - head);
+                System.arraycopy(buffer, head, cbuf, off, first);
+                System.arraycopy(buffer, 0, cbuf, off + first, num - first);
+                head = (head + num) % buffer.length;
+                count -= num;
+
+                notFull.signal();
+                return num;
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            pipeLock.lock();
+            try {
+                readerClosed = true;
+                notFull.signalAll();
+            } finally {
+                pipeLock.unlock();
+            }
+        }
+    };
+
+    ContentPipe(int capacity) {
+        buffer = new char[Math.max(1, capacity)];
+    }
+
+    /**
+     * The producing end of the pipe. Close to signal end of content.
+     */
+    Writer writer() {
+        return writer;
+    }
+
+    /**
+     * The consuming end of the pipe.
+     */
+    Reader reader() {
+        return reader;
+    }
+
+    /**
+     * Signals that the producer failed, which the reader will learn about
+     * after having consumed buffered content.
+     */
+    void fail(Throwable t) {
+        pipeLock.lock();
+        try {
+            failure = t;
+            writerClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    /**
+     * Time the writer has spent waiting for the reader to make room, up
+     * until now.
+     */
+    long writerBlockedNanos() {
+        pipeLock.lock();
+        try {
+            long blocked = writerBlockedNanos;
+            if (writerBlockedSince != 0L) {
+                blocked += System.nanoTime() - writerBlockedSince;
+            }
+            return blocked;
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    boolean isClosedByReader() {
+        pipeLock.lock();
+        try {
+            return readerClosed;
+        } finally {
+            pipeLock.unlock();
+        }
+    }
+
+    private static void await(Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+}
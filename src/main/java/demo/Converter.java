@@ -3,33 +3,76 @@ package demo;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 
 public class Converter {
     private static Logger log = LogManager.getLogger(Converter.class);
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Scanner scanner;
 
-    Converter(Scanner scanner) {
+    // Where to put text: a tree mirroring the source tree, a bundle or (if neither) the current directory
+    private final Path outputDirectory;
+    private final Path bundleFile;
+    private final boolean gzip;
+
+    private final long progressInterval; // seconds
+
+    Converter(Scanner scanner, Options options) {
         this.scanner = scanner;
+
+        String output = options.get("output", null);
+        outputDirectory = null != output ? Paths.get(output).toAbsolutePath().normalize() : null;
+        String bundle = options.get("bundle", null);
+        bundleFile = null != bundle ? Paths.get(bundle).toAbsolutePath().normalize() : null;
+        if (null != outputDirectory && null != bundleFile) {
+            throw new IllegalArgumentException("Convert to either an --output directory or a --bundle, not both");
+        }
+
+        String compress = options.get("compress", "none");
+        switch (compress) {
+            case "none" -> gzip = false;
+            case "gzip" -> gzip = true;
+            default -> throw new IllegalArgumentException("Unknown compression: " + compress + " (expected none or gzip)");
+        }
+
+        progressInterval = Math.max(0L, options.getLong("progress", 5L));
     }
 
     void convertDirectory(File directoryToConvert, PrintWriter out) {
-        Set<String> observedContentTypes = new HashSet<>();
-        Set<String> processedContentTypes = new HashSet<>();
-        Set<String> ignoredContentTypes = new HashSet<>();
+        // Updated concurrently by extraction workers and consumer threads
+        Set<String> observedContentTypes = ConcurrentHashMap.newKeySet();
+        Set<String> processedContentTypes = ConcurrentHashMap.newKeySet();
+        Set<String> ignoredContentTypes = ConcurrentHashMap.newKeySet();
+
+        final Path root = directoryToConvert.toPath().toAbsolutePath().normalize();
+        for (Path output : new Path[]{outputDirectory, bundleFile}) {
+            if (null != output && output.startsWith(root)) {
+                // Would be converted as well, while being written
+                throw new IllegalArgumentException("Output " + output + " is inside " + root);
+            }
+        }
 
-        try {
-            final Long[] fileCount = {0L};
-            fileCount[0] += scanner.scanDirectory(
+        try (Progress progress = new Progress(out, "converted", progressInterval);
+             Bundle bundle = null != bundleFile ? Bundle.open(bundleFile, gzip) : null) {
+            scanner.scanDirectory(
                     directoryToConvert, observedContentTypes,
-                    /* per directory */ () -> { /* ignore */ },
-                    /* per file */ (path, contentType, major, minor, charset, reader) -> {
+                    /* per directory */ directory -> { /* ignore */ },
+                    /* per file */ (path, entry, contentType, major, minor, reader) -> {
                         String filename = path.getFileName().toString();
+                        if (null != entry) {
+                            // Entry names are not to be trusted (think "../../"), so they are flattened
+                            filename += "#" + entry.replace('/', '_').replace('\\', '_');
+                        }
 
                         switch (major) {
                             case "audio":
@@ -41,25 +84,38 @@ public class Converter {
                                 break;
 
                             default:
-                                File outputFile = new File(filename + ".txt");
-                                FileIO.writeToFile(reader, outputFile);
+                                if (null != bundle) {
+                                    bundle.append(path, entry, contentType, reader);
+                                } else if (null != outputDirectory) {
+                                    // Mirrors the source tree, so same-named files in different directories are kept apart
+                                    Path relative = root.relativize(path.toAbsolutePath().normalize());
+                                    write(reader, outputDirectory.resolve(relative.resolveSibling(filename).toString() + ".txt"));
+                                } else {
+                                    write(reader, Paths.get(filename + ".txt"));
+                                }
                                 processedContentTypes.add(contentType);
 
                                 break;
                         }
 
-                        out.format("%8d %s\n", ++fileCount[0], filename);
-                        out.flush();
-
+                        if (null == entry) {
+                            progress.processed();
+                        }
                         return true;
                     });
+            progress.finish();
 
 
             //
             out.println();
             out.println();
             out.println("------------------------------------------------------------------------------------");
-            out.println("  Processed " + fileCount[0] + " file(s)");
+            out.println("  Processed " + progress.processedCount() + " file(s)");
+            if (null != bundle) {
+                out.println("  Written to " + bundle + " (index in " + Bundle.indexOf(bundleFile) + ")");
+            } else if (null != outputDirectory) {
+                out.println("  Written to " + outputDirectory);
+            }
             out.println("------------------------------------------------------------------------------------");
             out.println();
 
@@ -107,9 +163,43 @@ public class Converter {
                 }
                 out.println();
             }
+
+            //
+            if (!scanner.incidents().isEmpty()) {
+                out.println();
+                out.println("------------------------------------------------------------------------------------");
+                out.println("                             Slow or failed files");
+                out.println("------------------------------------------------------------------------------------");
+                for (Scanner.Incident incident : scanner.incidents()) {
+                    out.format("   %8d ms  %s  (%s)  %s\n", incident.elapsedMillis(), incident.path(), incident.contentType(), incident.reason());
+                }
+                out.println();
+            }
         } catch (IOException ioe) {
             out.println("Failed to convert: " + ioe.getMessage());
         }
     }
+
+    /*
+     * Writes text to file, as UTF-8 and (optionally) compressed, replacing
+     * any previous content.
+     */
+    private void write(Reader reader, Path file) throws IOException {
+        if (gzip) {
+            file = file.resolveSibling(file.getFileName() + ".gz");
+        }
+        Path parent = file.getParent();
+        if (null != parent) {
+            Files.createDirectories(parent);
+        }
+
+        OutputStream os = Files.newOutputStream(file);
+        if (gzip) {
+            os = new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            reader.transferTo(writer);
+        }
+    }
 }
 
@@ -0,0 +1,359 @@
+package demo;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of extracted text, so that files need not be parsed again
+ * when re-indexed (e.g. with another analyzer) or converted.
+ * <p/>
+ * Entries are keyed by a hash of file content and hold the content type,
+ * in a fixed size header, followed by the extracted text, gzip compressed.
+ * Hashing is avoided for files whose size and modification time are
+ * unchanged since they were last seen, by way of a catalog of paths.
+ * <p/>
+ * Total size of entries is bounded, least recently used entries being
+ * evicted first. Recency survives restarts as the modification time of
+ * entries.
+ * <p/>
+ * Lookups and stores may be done concurrently.
+ */
+class ExtractionCache {
+    private static final Logger log = LogManager.getLogger(ExtractionCache.class);
+
+    private static final String CATALOG = "catalog";
+    private static final String SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 256; // content type, padded with spaces
+
+    /**
+     * Cached state of a file, as of when it was last hashed.
+     */
+    private record Key(long size, long modified, String hash) {
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+
+    private final Map<String, Key> catalog = new ConcurrentHashMap<>(); // path -> key
+
+    // Entries, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, /* access order */ true); // guarded by this
+    private long totalBytes = 0L; // guarded by this
+
+    private ExtractionCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens (or creates) cache in directory.
+     */
+    static ExtractionCache open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        ExtractionCache cache = new ExtractionCache(directory, maxBytes);
+        cache.load();
+        return cache;
+    }
+
+    private void load() throws IOException {
+        // Entries, in order of last use
+        record Found(String hash, long size, FileTime used) {
+        }
+        List<Found> found = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    found.add(new Found(name.substring(0, name.length() - SUFFIX.length()), attributes.size(), attributes.lastModifiedTime()));
+                } else if (name.contains(".tmp")) {
+                    Files.deleteIfExists(path); // left behind by an interrupted store
+                }
+            }
+        }
+        found.sort(Comparator.comparing(Found::used));
+        synchronized (this) {
+            for (Found f : found) {
+                entries.put(f.hash(), f.size());
+                totalBytes += f.size();
+            }
+        }
+
+        Path catalogFile = directory.resolve(CATALOG);
+        if (Files.exists(catalogFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(catalogFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // hash, size, modified, path
+                    String[] parts = line.split("\t", 4);
+                    if (parts.length == 4) {
+                        try {
+                            catalog.put(parts[3], new Key(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+                        } catch (NumberFormatException ignore) {
+                        }
+                    }
+                }
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Extraction cache " + directory + ": " + found.size() + " entries, " + totalBytes + " bytes");
+        }
+    }
+
+    /**
+     * Hash of file content, from the catalog if the file has not been
+     * modified since it was last hashed.
+     */
+    String hashOf(Path path) throws IOException {
+        String absolutePath = path.toAbsolutePath().toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Key key = catalog.get(absolutePath);
+        if (null != key && key.size() == size && key.modified() == modified) {
+            return key.hash();
+        }
+
+        String hash = ContentHash.of(path);
+        catalog.put(absolutePath, new Key(size, modified, hash));
+        return hash;
+    }
+
+    /**
+     * A cached extraction.
+     */
+    static final class Hit implements Closeable {
+        private final InputStream is;
+        private final Reader reader;
+        private final String contentType;
+
+        private Hit(InputStream is) throws IOException {
+            this.is = is;
+            contentType = new String(is.readNBytes(HEADER_SIZE), StandardCharsets.UTF_8).trim();
+            reader = new InputStreamReader(new GZIPInputStream(is, BUFFER_SIZE), StandardCharsets.UTF_8);
+        }
+
+        String contentType() {
+            return contentType;
+        }
+
+        Reader reader() {
+            return reader;
+        }
+
+        /**
+         * The underlying file, which may be closed to abort reading.
+         */
+        Closeable source() {
+            return is;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Looks up extraction of file content with given hash.
+     *
+     * @return cached extraction or null if not cached
+     */
+    Hit lookup(String hash) {
+        synchronized (this) {
+            if (null == entries.get(hash)) { // marks as recently used
+                return null;
+            }
+        }
+
+        Path entry = entryPath(hash);
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Hit(Files.newInputStream(entry));
+        } catch (IOException ioe) {
+            // E.g. evicted by another thread since we looked
+            String info = "Failed to read cached extraction " + entry + ": " + ioe.getMessage();
+            log.debug(info);
+            return null;
+        }
+    }
+
+    /**
+     * An extraction being written to the cache. Nothing is cached
+     * unless committed. Failing to write to the cache does not fail
+     * the extraction, the content is just not cached.
+     */
+    final class Store extends Writer {
+        private final String hash;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final Writer writer;
+        private boolean failed = false;
+        private boolean done = false;
+
+        private Store(String hash) throws IOException {
+            this.hash = hash;
+            tmp = Files.createTempFile(directory, hash, ".tmp");
+            channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE); // header is written when committed, once the content type is final
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.write(cbuf, off, len);
+            } catch (IOException ioe) {
+                failed = true;
+                String info = "Failed to write to extraction cache: " + ioe.getMessage();
+                log.info(info);
+            }
+        }
+
+        @Override
+        public void flush() {
+            /* flushed when committed */
+        }
+
+        /**
+         * Makes extraction available to lookups.
+         */
+        void commit(String contentType) {
+            if (failed || done) {
+                close();
+                return;
+            }
+            done = true;
+            Path entry = entryPath(hash);
+            try {
+                byte[] header = new byte[HEADER_SIZE];
+                Arrays.fill(header, (byte) ' ');
+                byte[] type = contentType.getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(type, 0, header, 0, Math.min(type.length, HEADER_SIZE));
+                try {
+                    channel.write(ByteBuffer.wrap(header), 0L);
+                } finally {
+                    writer.close();
+                }
+
+                Files.createDirectories(entry.getParent());
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                added(hash, Files.size(entry));
+            } catch (IOException ioe) {
+                String info = "Failed to store extraction in cache: " + ioe.getMessage();
+                log.info(info);
+            } finally {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        /**
+         * Discards extraction, e.g. since it failed.
+         */
+        @Override
+        public void close() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                writer.close();
+            } catch (IOException ignore) {
+            }
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Starts storing an extraction of file content with given hash.
+     */
+    Store store(String hash) throws IOException {
+        return new Store(hash);
+    }
+
+    private void added(String hash, long size) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = entries.put(hash, size);
+            if (null != previous) {
+                totalBytes -= previous;
+            }
+            totalBytes += size;
+
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(hash)) {
+                    continue; // larger than the cache itself, but keep the latest
+                }
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+
+        for (String _hash : evicted) {
+            try {
+                Files.deleteIfExists(entryPath(_hash));
+            } catch (IOException ioe) {
+                String info = "Failed to evict cached extraction: " + ioe.getMessage();
+                log.info(info);
+            }
+        }
+        Metrics.counter("cache_evictions").add(evicted.size());
+    }
+
+    /**
+     * Saves the catalog, leaving out paths whose content is no longer cached.
+     */
+    void flush() throws IOException {
+        Set<String> cached;
+        synchronized (this) {
+            cached = new HashSet<>(entries.keySet());
+        }
+
+        Path catalogFile = directory.resolve(CATALOG);
+        Path tmp = directory.resolve(CATALOG + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Key> entry : catalog.entrySet()) {
+                Key key = entry.getValue();
+                if (cached.contains(key.hash())) {
+                    writer.write(key.hash() + "\t" + key.size() + "\t" + key.modified() + "\t" + entry.getKey() + "\n");
+                }
+            }
+        }
+        Files.move(tmp, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path entryPath(String hash) {
+        // Spread entries over subdirectories, to keep directories reasonably small
+        return directory.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+    }
+}
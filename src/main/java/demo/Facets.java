@@ -0,0 +1,164 @@
+package demo;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts matching documents by content type, by top-level directory and by
+ * age (of last modification), from doc values, i.e. without loading stored
+ * fields.
+ * <p/>
+ * Counts are kept per segment by ordinal and only resolved to values when
+ * the segment is done, so collecting a match costs little more than an
+ * array increment per dimension.
+ */
+class Facets {
+    static final String CONTENT_TYPE = "facet-content-type";
+    static final String DIRECTORY = "facet-directory";
+
+    // Age buckets, by upper bound
+    private static final long[] AGE_LIMITS = {
+            TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7), TimeUnit.DAYS.toMillis(31), TimeUnit.DAYS.toMillis(365)
+    };
+    private static final String[] AGE_LABELS = {"< 1 day", "< 1 week", "< 1 month", "< 1 year", ">= 1 year"};
+
+    private final Map<String, Long> contentTypes = new HashMap<>();
+    private final Map<String, Long> directories = new HashMap<>();
+    private final long[] ages = new long[AGE_LABELS.length];
+
+    /**
+     * Counts per dimension, most frequent value first.
+     */
+    Map<String, List<Map.Entry<String, Long>>> counts() {
+        Map<String, List<Map.Entry<String, Long>>> counts = new LinkedHashMap<>();
+        counts.put("content-type", sorted(contentTypes));
+        counts.put("directory", sorted(directories));
+
+        List<Map.Entry<String, Long>> _ages = new ArrayList<>();
+        for (int i = 0; i < ages.length; i++) {
+            if (ages[i] > 0) {
+                _ages.add(Map.entry(AGE_LABELS[i], ages[i]));
+            }
+        }
+        counts.put("age", _ages);
+        return counts;
+    }
+
+    private static List<Map.Entry<String, Long>> sorted(Map<String, Long> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return entries;
+    }
+
+    private void merge(Facets other) {
+        other.contentTypes.forEach((value, count) -> contentTypes.merge(value, count, Long::sum));
+        other.directories.forEach((value, count) -> directories.merge(value, count, Long::sum));
+        for (int i = 0; i < ages.length; i++) {
+            ages[i] += other.ages[i];
+        }
+    }
+
+    /**
+     * Collects facets for a search, possibly over several slices concurrently.
+     */
+    static CollectorManager<Collector, Facets> collectorManager() {
+        final long now = System.currentTimeMillis();
+
+        return new CollectorManager<>() {
+            @Override
+            public Collector newCollector() {
+                return new FacetsCollector(now);
+            }
+
+            @Override
+            public Facets reduce(Collection<Collector> collectors) {
+                Facets facets = new Facets();
+                for (Collector collector : collectors) {
+                    facets.merge(((FacetsCollector) collector).facets);
+                }
+                return facets;
+            }
+        };
+    }
+
+    /*
+     * Collects facets of a single slice.
+     */
+    private static final class FacetsCollector implements Collector {
+        private final long now;
+        final Facets facets = new Facets();
+
+        FacetsCollector(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            final SortedSetDocValues contentTypeValues = DocValues.getSortedSet(context.reader(), CONTENT_TYPE);
+            final SortedSetDocValues directoryValues = DocValues.getSortedSet(context.reader(), DIRECTORY);
+            final NumericDocValues modifiedValues = DocValues.getNumeric(context.reader(), "modified");
+
+            // Counts by ordinal, resolved when the segment is done
+            final long[] contentTypeCounts = new long[(int) contentTypeValues.getValueCount()];
+            final long[] directoryCounts = new long[(int) directoryValues.getValueCount()];
+
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorable scorer) {
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    if (contentTypeValues.advanceExact(doc)) {
+                        for (int i = 0; i < contentTypeValues.docValueCount(); i++) {
+                            contentTypeCounts[(int) contentTypeValues.nextOrd()]++;
+                        }
+                    }
+                    if (directoryValues.advanceExact(doc)) {
+                        for (int i = 0; i < directoryValues.docValueCount(); i++) {
+                            directoryCounts[(int) directoryValues.nextOrd()]++;
+                        }
+                    }
+                    if (modifiedValues.advanceExact(doc)) {
+                        long age = now - modifiedValues.longValue();
+                        int bucket = 0;
+                        while (bucket < AGE_LIMITS.length && age >= AGE_LIMITS[bucket]) {
+                            bucket++;
+                        }
+                        facets.ages[bucket]++;
+                    }
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    resolve(contentTypeValues, contentTypeCounts, facets.contentTypes);
+                    resolve(directoryValues, directoryCounts, facets.directories);
+                }
+            };
+        }
+
+        private static void resolve(SortedSetDocValues values, long[] counts, Map<String, Long> into) throws IOException {
+            for (int ord = 0; ord < counts.length; ord++) {
+                if (counts[ord] > 0) {
+                    into.merge(values.lookupOrd(ord).utf8ToString(), counts[ord], Long::sum);
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package demo;
 
-import org.apache.commons.io.input.ReaderInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -11,6 +10,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 /**
  * Various handy file IO related functions.
@@ -50,11 +50,13 @@ public class FileIO {
     }
 
     /**
-     * Writes from a Reader to a file
+     * Writes from a Reader to a file, as UTF-8, replacing any previous content
      */
     public static File writeToFile(Reader reader, File file) throws IOException {
-        InputStream inputStream = new ReaderInputStream(reader, StandardCharsets.UTF_8);
-        return writeToFile(inputStream, file);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            reader.transferTo(writer);
+        }
+        return file;
     }
 
     /**
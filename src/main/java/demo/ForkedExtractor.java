@@ -0,0 +1,203 @@
+package demo;
+
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.exception.WriteLimitReachedException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Extracts content from files in a separate JVM, on behalf of a parent
+ * process (see {@link ForkedExtractorPool}), so that parsers running out of
+ * memory or crashing do not take the parent down with them.
+ * <p/>
+ * Once started, the child writes an 'R' to stdout. The parent then writes
+ * paths of files to stdin, one at a time, and the child answers on stdout with
+ * a sequence of frames for each file:
+ * <pre>
+ *   'T' content-type    -- when the document starts (content type is known)
+ *   'C' length chars    -- extracted content, in chunks
+ *   'L'                 -- content was truncated at the character limit
+ *   'E'                 -- end of document
+ *   'F' kind message    -- failed (instead of 'E'), kind being one of
+ *                          "tika", "sax", "io" or "error"
+ * </pre>
+ * After an 'F' of kind "error", the child exits and has to be replaced.
+ * <p/>
+ * Since stdout carries the protocol, anything else written to System.out
+ * is redirected to stderr.
+ */
+public class ForkedExtractor {
+    static final byte READY = 'R';
+    static final byte TYPE = 'T';
+    static final byte CHUNK = 'C';
+    static final byte LIMIT = 'L';
+    static final byte END = 'E';
+    static final byte FAILURE = 'F';
+
+    static final String TIKA_FAILURE = "tika";
+    static final String SAX_FAILURE = "sax";
+    static final String IO_FAILURE = "io";
+    static final String ERROR_FAILURE = "error";
+
+    static final int CHUNK_SIZE = 8 * 1024; // characters
+
+    private final Parser parser;
+    private final int maxCharacters;
+    private final DataOutputStream out;
+
+    private ForkedExtractor(Parser parser, int maxCharacters, DataOutputStream out) {
+        this.parser = parser;
+        this.maxCharacters = maxCharacters;
+        this.out = out;
+    }
+
+    /**
+     * usage: ForkedExtractor &lt;tika-config-file&gt; &lt;max-characters&gt;
+     */
+    public static void main(String[] args) throws Exception {
+        // Claim stdout for the protocol before anyone else gets to it
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024)
+        );
+        System.setOut(System.err);
+
+        TikaConfig config = new TikaConfig(new File(args[0]));
+        Parser parser = new AutoDetectParser(config);
+        int maxCharacters = Integer.parseInt(args[1]);
+
+        ForkedExtractor extractor = new ForkedExtractor(parser, maxCharacters, out);
+        out.writeByte(READY);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        while (true) {
+            String path;
+            try {
+                path = in.readUTF();
+            } catch (EOFException eof) {
+                break; // parent is done with us
+            }
+
+            if (!extractor.extract(path)) {
+                break;
+            }
+        }
+        out.flush();
+    }
+
+    /*
+     * Returns false if this JVM should not be used any more.
+     */
+    private boolean extract(String path) throws IOException {
+        final Metadata metadata = new Metadata();
+        metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, Paths.get(path).getFileName().toString());
+        final boolean[] started = {false};
+
+        Writer chunks = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                while (len > 0) {
+                    int num = Math.min(len, CHUNK_SIZE);
+                    out.writeByte(CHUNK);
+                    out.writeInt(num);
+                    for (int i = 0; i < num; i++) {
+                        out.writeChar(cbuf[off + i]);
+                    }
+                    off += num;
+                    len -= num;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        ContentHandler handler = new ContentHandlerDecorator(
+                new BodyContentHandler(new WriteOutContentHandler(new BufferedWriter(chunks, CHUNK_SIZE), maxCharacters))) {
+            @Override
+            public void startDocument() throws SAXException {
+                try {
+                    start(metadata, started);
+                } catch (IOException ioe) {
+                    throw new SAXException("Failed to write to parent", ioe);
+                }
+                super.startDocument();
+            }
+        };
+
+        boolean truncated = false;
+        try (InputStream is = Files.newInputStream(Paths.get(path))) {
+            try {
+                parser.parse(is, handler, metadata, new ParseContext());
+            } catch (Exception e) {
+                if (!WriteLimitReachedException.isWriteLimitReached(e)) {
+                    throw e;
+                }
+                truncated = true;
+            }
+            handler.endDocument(); // flushes buffered content
+
+        } catch (TikaException tikae) {
+            return fail(TIKA_FAILURE, tikae);
+        } catch (SAXException saxe) {
+            return fail(SAX_FAILURE, saxe);
+        } catch (IOException ioe) {
+            return fail(IO_FAILURE, ioe);
+        } catch (Throwable t) {
+            // Heap may well be poisoned, so let parent replace us
+            fail(ERROR_FAILURE, t);
+            return false;
+        }
+
+        start(metadata, started);
+        if (truncated) {
+            out.writeByte(LIMIT);
+        }
+        out.writeByte(END);
+        out.flush();
+        return true;
+    }
+
+    private void start(Metadata metadata, boolean[] started) throws IOException {
+        if (!started[0]) {
+            started[0] = true;
+            String contentType = metadata.get("Content-Type");
+            out.writeByte(TYPE);
+            out.writeUTF(null != contentType ? contentType : "");
+            out.flush();
+        }
+    }
+
+    private boolean fail(String kind, Throwable t) throws IOException {
+        String message = t.getMessage();
+        if (null == message) {
+            message = t.getClass().getName();
+        } else if (message.length() > 1000) {
+            message = message.substring(0, 1000); // writeUTF is limited to 64k bytes
+        }
+        out.writeByte(FAILURE);
+        out.writeUTF(kind);
+        out.writeUTF(message);
+        out.flush();
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package demo;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.xml.sax.SAXException;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A pool of reusable child JVMs running {@link ForkedExtractor}, streaming
+ * extracted content back to this process.
+ * <p/>
+ * Each child runs with its own heap and is replaced after having processed
+ * a number of files, after a crash or when it is killed because an
+ * extraction took too long.
+ */
+class ForkedExtractorPool {
+    private static final Logger log = LogManager.getLogger(ForkedExtractorPool.class);
+
+    private final List<String> command = new ArrayList<>();
+    private final int maxFilesPerChild;
+
+    private final Semaphore available;
+    private final Queue<Child> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Receives notice that the document has started, when the content
+     * type is known.
+     */
+    interface StartListener {
+        void started() throws InterruptedException;
+    }
+
+    ForkedExtractorPool(File tikaConfigFile, int size, String heap, int maxFilesPerChild, int maxCharacters) {
+        this.maxFilesPerChild = Math.max(1, maxFilesPerChild);
+        available = new Semaphore(Math.max(1, size));
+
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        command.add(java.toString());
+        command.add("-Xmx" + heap);
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        command.add("-Dlog4j2.configurationFile=log4j2-forked.xml");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ForkedExtractor.class.getName());
+        command.add(tikaConfigFile.getAbsolutePath());
+        command.add(String.valueOf(maxCharacters));
+    }
+
+    /**
+     * Extracts content of a file in a child process, writing content to
+     * sink. If the sink is closed by its reader, remaining content is
+     * discarded.
+     *
+     * @param abortable receives the child process, which may be closed (killed) to abort extraction
+     * @return true if content was truncated
+     */
+    boolean extract(
+            Path path,
+            Metadata metadata,
+            Writer sink,
+            StartListener listener,
+            Scanner.Abortable abortable
+    ) throws IOException, TikaException, SAXException, InterruptedException {
+
+        available.acquire();
+        Child child = idle.poll();
+        boolean reusable = false;
+        try {
+            if (null == child) {
+                child = new Child(new ProcessBuilder(command)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+                abortable.abortWith(child);
+                if (child.in.readByte() != ForkedExtractor.READY) {
+                    throw new IOException("Extraction process failed to start");
+                }
+            } else {
+                abortable.abortWith(child);
+            }
+            abortable.startClock();
+
+            child.files++;
+            child.out.writeUTF(path.toAbsolutePath().toString());
+            child.out.flush();
+
+            boolean discard = false;
+            boolean truncated = false;
+            char[] chunk = new char[ForkedExtractor.CHUNK_SIZE];
+            byte[] bytes = new byte[2 * ForkedExtractor.CHUNK_SIZE];
+
+            while (true) {
+                byte frame = child.in.readByte();
+                switch (frame) {
+                    case ForkedExtractor.TYPE -> {
+                        String contentType = child.in.readUTF();
+                        if (!contentType.isEmpty()) {
+                            metadata.set("Content-Type", contentType);
+                        }
+                        listener.started();
+                    }
+                    case ForkedExtractor.CHUNK -> {
+                        int length = child.in.readInt();
+                        child.in.readFully(bytes, 0, 2 * length);
+                        if (!discard) {
+                            for (int i = 0; i < length; i++) {
+                                chunk[i] = (char) (((bytes[2 * i] & 0xFF) << 8) | (bytes[2 * i + 1] & 0xFF));
+                            }
+                            try {
+                                sink.write(chunk, 0, length);
+                            } catch (IOException ioe) {
+                                // Reader is no longer interested, but we have to keep the child in sync
+                                discard = true;
+                            }
+                        }
+                    }
+                    case ForkedExtractor.LIMIT -> truncated = true;
+                    case ForkedExtractor.END -> {
+                        reusable = child.files < maxFilesPerChild;
+                        return truncated;
+                    }
+                    case ForkedExtractor.FAILURE -> {
+                        String kind = child.in.readUTF();
+                        String message = child.in.readUTF();
+                        switch (kind) {
+                            case ForkedExtractor.TIKA_FAILURE -> {
+                                reusable = child.files < maxFilesPerChild;
+                                throw new TikaException(message);
+                            }
+                            case ForkedExtractor.SAX_FAILURE -> {
+                                reusable = child.files < maxFilesPerChild;
+                                throw new SAXException(message);
+                            }
+                            case ForkedExtractor.IO_FAILURE -> {
+                                reusable = child.files < maxFilesPerChild;
+                                throw new IOException(message);
+                            }
+                            default -> throw new IOException("Extraction process failed: " + message);
+                        }
+                    }
+                    default -> throw new IOException("Unexpected frame from extraction process: " + frame);
+                }
+            }
+        } catch (EOFException eof) {
+            throw new IOException("Extraction process died while processing file", eof);
+
+        } finally {
+            if (null != child) {
+                if (reusable && child.process.isAlive()) {
+                    idle.add(child);
+                } else {
+                    child.close();
+                }
+            }
+            available.release();
+        }
+    }
+
+    private static final class Child implements Closeable {
+        final Process process;
+        final DataOutputStream out;
+        final DataInputStream in;
+        int files = 0;
+
+        Child(Process process) {
+            this.process = process;
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 64 * 1024));
+        }
+
+        /**
+         * Kills the child process.
+         */
+        @Override
+        public void close() {
+            process.destroyForcibly();
+            if (log.isDebugEnabled()) {
+                log.debug("Stopped extraction process " + process.pid() + " after " + files + " file(s)");
+            }
+        }
+    }
+}
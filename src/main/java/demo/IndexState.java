@@ -0,0 +1,199 @@
+package demo;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * What an existing index knows about the files below a directory, as of
+ * when it was opened. Used when re-indexing incrementally, to skip files that
+ * have not changed and to find documents for files that no longer exist.
+ * <p/>
+ * Lookups may be done concurrently.
+ */
+class IndexState implements Closeable {
+    private static final Set<String> HASH_FIELD = Set.of("hash");
+    private static final Set<String> PATH_FIELDS = Set.of("path", "container");
+
+    /**
+     * Indexed state of a file. Size and modification time are -1 if
+     * not known and hash is null if not indexed.
+     */
+    record Entry(long size, long modified, String hash) {
+    }
+
+    private final IndexReader reader;
+    private final String prefix;
+    private final FixedBitSet[] seen;
+    private final FixedBitSet[] copies;
+
+    private IndexState(IndexReader reader, Path root) throws IOException {
+        this.reader = reader;
+
+        String _prefix = root.toAbsolutePath().toString();
+        if (!_prefix.endsWith(File.separator)) {
+            _prefix += File.separator;
+        }
+        prefix = _prefix;
+
+        List<LeafReaderContext> leaves = reader.leaves();
+        seen = new FixedBitSet[leaves.size()];
+        copies = new FixedBitSet[leaves.size()];
+        for (LeafReaderContext leaf : leaves) {
+            seen[leaf.ord] = new FixedBitSet(leaf.reader().maxDoc());
+            copies[leaf.ord] = copiesIn(leaf.reader());
+        }
+    }
+
+    /*
+     * Documents for copies of other files (when indexed with --dedup), or null if there are none.
+     */
+    private static FixedBitSet copiesIn(LeafReader leaf) throws IOException {
+        Terms terms = leaf.terms("canonical");
+        if (null == terms) {
+            return null;
+        }
+        FixedBitSet bits = new FixedBitSet(leaf.maxDoc());
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        while (null != termsEnum.next()) {
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            bits.or(postings);
+        }
+        return bits;
+    }
+
+    /**
+     * Opens state of index, for files below root.
+     *
+     * @return index state or null if there is no index yet
+     */
+    static IndexState open(Directory indexDirectory, Path root) throws IOException {
+        return open(List.of(indexDirectory), root);
+    }
+
+    /**
+     * Opens state of a sharded index, for files below root.
+     *
+     * @return index state or null if there is no index yet
+     */
+    static IndexState open(List<Directory> shards, Path root) throws IOException {
+        List<Directory> existing = new ArrayList<>();
+        for (Directory shard : shards) {
+            if (DirectoryReader.indexExists(shard)) {
+                existing.add(shard);
+            }
+        }
+        if (existing.isEmpty()) {
+            return null;
+        }
+        return new IndexState(Shards.openReader(existing), root);
+    }
+
+    /**
+     * Looks up the indexed state of a file and marks it as seen.
+     *
+     * @return indexed state or null if file is not indexed
+     */
+    Entry lookup(String path, boolean withHash) throws IOException {
+        BytesRef term = new BytesRef(path);
+
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leaf = context.reader();
+            Terms terms = leaf.terms("path");
+            if (null == terms) {
+                continue;
+            }
+
+            TermsEnum termsEnum = terms.iterator();
+            if (!termsEnum.seekExact(term)) {
+                continue;
+            }
+
+            Bits liveDocs = leaf.getLiveDocs();
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (null != liveDocs && !liveDocs.get(doc)) {
+                    continue;
+                }
+
+                FixedBitSet bits = seen[context.ord];
+                synchronized (bits) {
+                    bits.set(doc);
+                }
+
+                if ((null != copies[context.ord] && copies[context.ord].get(doc)) || !hasContentType(leaf, doc)) {
+                    // Copies (what they copy may have changed) and files indexed by name only
+                    // (since what they copy could not be indexed) are indexed anew
+                    return new Entry(-1L, -1L, null);
+                }
+
+                long size = numericValue(leaf, "size", doc);
+                long modified = numericValue(leaf, "modified", doc);
+                String hash = null;
+                if (withHash) {
+                    hash = leaf.storedFields().document(doc, HASH_FIELD).get("hash");
+                }
+                return new Entry(size, modified, hash);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Paths of indexed files below root that have not been looked up. Call
+     * when all existing files have been looked up, to find files that have
+     * been removed. Entries of containers are not included, since they are
+     * removed along with their container.
+     */
+    Collection<String> unseen() throws IOException {
+        Collection<String> paths = new ArrayList<>();
+
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leaf = context.reader();
+            Bits liveDocs = leaf.getLiveDocs();
+            FixedBitSet bits = seen[context.ord];
+            StoredFields storedFields = leaf.storedFields();
+
+            for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                if ((null != liveDocs && !liveDocs.get(doc)) || bits.get(doc)) {
+                    continue;
+                }
+                Document document = storedFields.document(doc, PATH_FIELDS);
+                String path = document.get("path");
+                if (null != path && path.startsWith(prefix) && null == document.get("container")) {
+                    paths.add(path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static boolean hasContentType(LeafReader leaf, int doc) throws IOException {
+        SortedSetDocValues values = leaf.getSortedSetDocValues(Facets.CONTENT_TYPE);
+        return null != values && values.advanceExact(doc);
+    }
+
+    private static long numericValue(LeafReader leaf, String field, int doc) throws IOException {
+        NumericDocValues values = leaf.getNumericDocValues(field);
+        if (null != values && values.advanceExact(doc)) {
+            return values.longValue();
+        }
+        return -1L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -5,140 +5,714 @@ import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 class Indexer {
     private static Logger log = LogManager.getLogger(Indexer.class);
+    private static final Set<String> CONTENT_TYPE_FIELD = Set.of("content-type");
 
-    private final Directory indexDirectory;
+    private final List<Directory> shards;
     private final Analyzer analyzer;
     private final Scanner scanner;
 
-    Indexer(Directory indexDirectory, Analyzer analyzer, Scanner scanner) {
-        this.indexDirectory = indexDirectory;
+    // Incremental indexing
+    private final boolean incremental;
+    private final boolean hashContent;
+
+    // Deduplication of identical files
+    private final boolean dedup;
+
+    // Checkpoints of long crawls, so that they may be resumed
+    private final long checkpointInterval; // milliseconds, <= 0 to not checkpoint
+    private final boolean resume;
+
+    // Fields for leading wildcard and substring queries
+    private final boolean suffixFields;
+
+    /**
+     * How the index writer is tuned.
+     */
+    enum Profile {
+        /* Flushes a segment per directory */
+        DEFAULT,
+
+        /* Flushes when the RAM buffer is full, merges in larger and fewer steps */
+        BULK,
+
+        /* Commits per directory, so that a searcher may see changes early */
+        LOW_LATENCY;
+
+        static Profile of(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unknown profile: " + name + " (expected default, bulk or low-latency)");
+            }
+        }
+    }
+
+    private final Profile profile;
+    private final double ramBufferSizeMB; // <= 0 to use profile default
+    private final int mergeThreads; // <= 0 to use profile default
+    private final int forceMergeSegments; // <= 0 to not force merge
+
+    private final long progressInterval; // seconds
+
+    Indexer(Directory indexDirectory, Analyzer analyzer, Scanner scanner, Options options) {
+        this(List.of(indexDirectory), analyzer, scanner, options);
+    }
+
+    /**
+     * Indexes into shards, assigning files to shards by path.
+     */
+    Indexer(List<Directory> shards, Analyzer analyzer, Scanner scanner, Options options) {
+        this.shards = shards;
         this.analyzer = analyzer;
         this.scanner = scanner;
+
+        incremental = options.getBoolean("incremental", false);
+        hashContent = options.getBoolean("hash", false);
+        dedup = options.getBoolean("dedup", false);
+        suffixFields = options.getBoolean("suffix-fields", false);
+        checkpointInterval = options.getLong("checkpoint-interval", 300L) * 1000L;
+        resume = options.getBoolean("resume", false);
+        if (dedup && incremental) {
+            // Unchanged files are not looked at, so we would not know what a new file is a copy of
+            throw new IllegalArgumentException("Deduplication is not supported when indexing incrementally");
+        }
+
+        profile = Profile.of(options.get("profile", "default"));
+        ramBufferSizeMB = options.getInt("ram-buffer-mb", 0);
+        mergeThreads = options.getInt("merge-threads", 0);
+        forceMergeSegments = options.getInt("force-merge", 0);
+
+        progressInterval = Math.max(0L, options.getLong("progress", 5L));
     }
 
-    void indexDirectory(File directoryToIndex, PrintWriter out) {
-        Set<String> observedContentTypes = new HashSet<>();
-        Set<String> processedContentTypes = new HashSet<>();
-        Set<String> ignoredContentTypes = new HashSet<>();
+    private void configure(IndexWriterConfig config) {
+        switch (profile) {
+            case BULK -> {
+                config.setRAMBufferSizeMB(ramBufferSizeMB > 0 ? ramBufferSizeMB : 256.0);
+                config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+
+                // Fewer, larger merges
+                TieredMergePolicy mergePolicy = new TieredMergePolicy();
+                mergePolicy.setSegmentsPerTier(20.0);
+                mergePolicy.setFloorSegmentMB(64.0);
+                mergePolicy.setMaxMergedSegmentMB(10 * 1024.0);
+                config.setMergePolicy(mergePolicy);
 
+                ConcurrentMergeScheduler mergeScheduler = new TimedMergeScheduler();
+                int threads = mergeThreads > 0 ? mergeThreads : Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+                mergeScheduler.setMaxMergesAndThreads(threads + 5, threads);
+                mergeScheduler.disableAutoIOThrottle();
+                config.setMergeScheduler(mergeScheduler);
+            }
+            case LOW_LATENCY -> {
+                config.setRAMBufferSizeMB(ramBufferSizeMB > 0 ? ramBufferSizeMB : 16.0);
+                ConcurrentMergeScheduler mergeScheduler = new TimedMergeScheduler();
+                if (mergeThreads > 0) {
+                    mergeScheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+                }
+                config.setMergeScheduler(mergeScheduler);
+            }
+            default -> {
+                if (ramBufferSizeMB > 0) {
+                    config.setRAMBufferSizeMB(ramBufferSizeMB);
+                }
+                ConcurrentMergeScheduler mergeScheduler = new TimedMergeScheduler();
+                if (mergeThreads > 0) {
+                    mergeScheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+                }
+                config.setMergeScheduler(mergeScheduler);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Index writer profile " + profile + ": RAM buffer " + config.getRAMBufferSizeMB() + " MB, " + config.getMergePolicy() + ", " + config.getMergeScheduler());
+        }
+    }
+
+    /**
+     * Opens a writer per shard, to be closed by the caller.
+     */
+    IndexWriter[] openWriters() throws IOException {
+        IndexWriter[] indexWriters = new IndexWriter[shards.size()];
         try {
-            IndexWriterConfig indexerConfig = new IndexWriterConfig(analyzer);
-            indexerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-
-            final Long[] fileCount = {0L};
-            try (IndexWriter indexWriter = new IndexWriter(indexDirectory, indexerConfig)) {
-                fileCount[0] += scanner.scanDirectory(
-                        directoryToIndex, observedContentTypes,
-                        /* per directory */ indexWriter::flush,
-                        /* per file */ (path, contentType, major, minor, charset, reader) -> {
-                            String filename = path.getFileName().toString();
-                            String absolutePath = path.toAbsolutePath().toString();
-
-                            //
-                            Document doc = new Document();
-
-                            // Things to index: filename, path, content-type, content
-                            doc.add(new StringField("filename", filename, Field.Store.YES));
-                            doc.add(new StringField("path", absolutePath, Field.Store.YES));
-                            doc.add(new StringField("content-type", contentType, Field.Store.YES));
-
-                            switch (major) {
-                                case "audio":
-                                case "video":
-                                case "img": // incorrect spelling!
-                                case "image":
-                                case "font":
-                                    ignoredContentTypes.add(contentType);
-                                    break;
-
-                                default:
-                                    doc.add(new TextField("content", reader));
-                                    processedContentTypes.add(contentType);
-
-                                    break;
-                            }
+            for (int i = 0; i < indexWriters.length; i++) {
+                IndexWriterConfig indexerConfig = new IndexWriterConfig(analyzer);
+                indexerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+                configure(indexerConfig);
+                if (shards.size() > 1) {
+                    // The RAM buffer is shared by all shards
+                    indexerConfig.setRAMBufferSizeMB(indexerConfig.getRAMBufferSizeMB() / shards.size());
+                }
+                indexWriters[i] = new IndexWriter(shards.get(i), indexerConfig);
+            }
+            return indexWriters;
+        } catch (IOException | RuntimeException e) {
+            closeWriters(indexWriters);
+            throw e;
+        }
+    }
 
-                            out.format("%8d %s\n", ++fileCount[0], filename);
-                            out.flush();
+    /**
+     * Closes writers, committing pending changes.
+     */
+    static void closeWriters(IndexWriter[] indexWriters) {
+        for (IndexWriter indexWriter : indexWriters) {
+            if (null != indexWriter) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    String info = "Failed to close index: " + e.getMessage();
+                    log.warn(info, e);
+                }
+            }
+        }
+    }
 
-                            indexWriter.addDocument(doc);
+    void indexDirectory(File directoryToIndex, PrintWriter out) {
+        IndexWriter[] indexWriters = null;
+        try {
+            indexWriters = openWriters();
+            indexDirectory(directoryToIndex, out, indexWriters);
+        } catch (IOException e) {
+            String info = "Failed to close index: " + e.getMessage();
+            log.warn(info, e);
+        } finally {
+            if (null != indexWriters) {
+                closeWriters(indexWriters);
+            }
+        }
+    }
+
+    /**
+     * Indexes directory with writers (one per shard) that are kept open,
+     * committing when done.
+     */
+    void indexDirectory(File directoryToIndex, PrintWriter out, IndexWriter[] indexWriters) throws IOException {
+        // Updated concurrently by extraction workers and index threads
+        Set<String> observedContentTypes = ConcurrentHashMap.newKeySet();
+        Set<String> processedContentTypes = ConcurrentHashMap.newKeySet();
+        Set<String> ignoredContentTypes = ConcurrentHashMap.newKeySet();
+
+        // Deduplication: files are only hashed if some other file has the same size
+        Map<Long, Path> firstBySize = new ConcurrentHashMap<>();
+        Set<Long> hashedSizes = ConcurrentHashMap.newKeySet();
+        Map<String, Path> canonicalByHash = new ConcurrentHashMap<>();
+        Map<Path, Queue<Path>> copiesOf = new ConcurrentHashMap<>(); // by canonical file
+        Set<String> changed = ConcurrentHashMap.newKeySet(); // changed files, until indexed anew
+        LongAdder copies = new LongAdder();
+
+        final Path root = directoryToIndex.toPath().toAbsolutePath().normalize();
+
+        // Directories completed by an interrupted run are skipped, and those completed by this
+        // run are committed every so often
+        Checkpoint resumed = null;
+        if (resume) {
+            resumed = Checkpoint.resume(shards, root);
+            if (null == resumed) {
+                out.println("No interrupted run to resume for " + root + ", starting over");
+            } else {
+                out.println("Resuming after " + resumed.previousFiles() + " file(s), last completed directory " + resumed.lastCompleted());
+                observedContentTypes.addAll(resumed.previousContentTypes());
+            }
+            out.flush();
+        }
+        final Checkpoint checkpoint = null != resumed ? resumed : Checkpoint.start(root);
+        final boolean resuming = null != resumed;
+        final Object checkpointLock = new Object();
+        final AtomicLong lastCheckpoint = new AtomicLong(System.currentTimeMillis());
+
+        long removedCount = 0L;
+        try (Progress progress = new Progress(out, "indexed", progressInterval);
+             IndexState indexState = incremental ? IndexState.open(shards, directoryToIndex.toPath()) : null) {
+
+            Scanner.ScanPerDirectoryRunnable perDirectoryByProfile = switch (profile) {
+                case BULK -> directory -> { /* flushes follow RAM usage, not directories */ };
+                case LOW_LATENCY -> directory -> {
+                    long start = System.nanoTime();
+                    for (IndexWriter indexWriter : indexWriters) {
+                        indexWriter.commit();
+                    }
+                    Metrics.timer("commit").recordSince(start);
+                };
+                default -> directory -> {
+                    long start = System.nanoTime();
+                    for (IndexWriter indexWriter : indexWriters) {
+                        indexWriter.flush();
+                    }
+                    Metrics.timer("flush").recordSince(start);
+                };
+            };
+
+            Scanner.ScanPerDirectoryRunnable perDirectory = directory -> {
+                perDirectoryByProfile.run(directory);
+                checkpoint.completed(directory);
+                if (checkpointInterval > 0 && System.currentTimeMillis() - lastCheckpoint.get() >= checkpointInterval) {
+                    synchronized (checkpointLock) {
+                        if (System.currentTimeMillis() - lastCheckpoint.get() >= checkpointInterval) {
+                            commit(indexWriters, checkpoint.next(progress.processedCount(), observedContentTypes));
+                            lastCheckpoint.set(System.currentTimeMillis());
+                        }
+                    }
+                }
+            };
+
+            scanner.scanDirectory(
+                    directoryToIndex, observedContentTypes,
+                    /* per directory, before scanning it */ directory -> !resuming || !checkpoint.covers(directory),
+                    /* per directory */ perDirectory,
+                    /* per file, before extraction */ path -> {
+                        if (dedup) {
+                            Path canonical = canonicalOf(path, firstBySize, hashedSizes, canonicalByHash);
+                            if (null != canonical) {
+                                addCopy(writerOf(indexWriters, path), root, path, canonical, null, suffixFields);
+                                copiesOf.computeIfAbsent(canonical, c -> new ConcurrentLinkedQueue<>()).add(path);
+                                copies.increment();
+                                return false;
+                            }
                             return true;
-                        });
+                        }
 
-                out.println();
-                out.println("Committing to database...");
+                        if (null == indexState) {
+                            return true;
+                        }
+
+                        String absolutePath = path.toAbsolutePath().toString();
+                        IndexState.Entry entry = indexState.lookup(absolutePath, hashContent);
+                        if (null == entry) {
+                            return true; // new file
+                        }
+
+                        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        long size = attributes.size();
+                        long modified = attributes.lastModifiedTime().toMillis();
+                        if (entry.size() == size && entry.modified() == modified) {
+                            progress.skipped();
+                            return false;
+                        }
+
+                        // Touched, but possibly not changed
+                        if (hashContent && entry.size() == size && ContentHash.of(path).equals(entry.hash())) {
+                            writerOf(indexWriters, path).updateNumericDocValue(new Term("path", absolutePath), "modified", modified);
+                            progress.skipped();
+                            return false;
+                        }
+
+                        // Entries of a changed container are indexed anew, and may since have been removed from it
+                        writerOf(indexWriters, path).deleteDocuments(new Term("container", absolutePath));
+                        changed.add(absolutePath);
+                        return true;
+                    },
+                    /* per file */ (path, entry, contentType, major, minor, reader) -> {
+                        // Files indexed since the last checkpoint of an interrupted run are indexed again
+                        if (indexFile(indexWriters, root, path, entry, contentType, major, reader, incremental || resuming)) {
+                            processedContentTypes.add(contentType);
+                        } else {
+                            ignoredContentTypes.add(contentType);
+                        }
+                        if (null == entry) {
+                            changed.remove(path.toAbsolutePath().toString());
+                            progress.processed();
+                        }
+                        return true;
+                    });
+
+            if (null != indexState) {
+                // Remove documents for files that no longer exist
+                for (String path : indexState.unseen()) {
+                    if (resuming && checkpoint.covers(Paths.get(path))) {
+                        continue; // in a directory that was skipped
+                    }
+                    // ...along with their entries, if containers
+                    indexWriters[Shards.of(path, indexWriters.length)].deleteDocuments(new Term("path", path), new Term("container", path));
+                    removedCount++;
+                }
+            }
+
+            // Documents of changed files that could not be indexed anew are outdated, so they are
+            // removed, leaving the files to be retried as new files (failures are listed below)
+            long outdatedCount = 0L;
+            for (String path : changed) {
+                indexWriters[Shards.of(path, indexWriters.length)].deleteDocuments(new Term("path", path));
+                outdatedCount++;
+            }
+
+            // Canonical files were chosen before being extracted, which may have failed
+            long detachedCount = dedup ? completeCopies(indexWriters, root, copiesOf, suffixFields) : 0L;
+
+            progress.finish();
+
+            out.println();
+            out.println("Committing to database...");
+            long start = System.nanoTime();
+            for (IndexWriter indexWriter : indexWriters) {
+                indexWriter.setLiveCommitData(Map.<String, String>of().entrySet()); // done, so nothing to resume
                 indexWriter.commit();
+            }
+            Metrics.timer("commit").recordSince(start);
+
+            if (forceMergeSegments > 0) {
+                out.println("Merging down to " + forceMergeSegments + " segment(s)" + (indexWriters.length > 1 ? " per shard" : "") + "...");
+                out.flush();
+                start = System.nanoTime();
+                // Shards are merged concurrently, by their merge schedulers
+                for (IndexWriter indexWriter : indexWriters) {
+                    indexWriter.forceMerge(forceMergeSegments, /* wait? */ false);
+                }
+                for (IndexWriter indexWriter : indexWriters) {
+                    indexWriter.forceMerge(forceMergeSegments, /* wait? */ true);
+                    indexWriter.commit();
+                }
+                Metrics.timer("force_merge").recordSince(start);
+            }
+
+            //
+            out.println();
+            out.println();
+            out.println("------------------------------------------------------------------------------------");
+            out.println("  Processed " + progress.processedCount() + " file(s)");
+            if (resuming) {
+                out.println("  Resumed after " + checkpoint.previousFiles() + " file(s) processed by an interrupted run");
+            }
+            if (incremental) {
+                out.println("  Skipped " + progress.skippedCount() + " unchanged file(s)");
+                out.println("  Removed " + removedCount + " deleted file(s)");
+                if (outdatedCount > 0L) {
+                    out.println("  Removed " + outdatedCount + " changed file(s) that could not be indexed anew (retried next time)");
+                }
+            }
+            if (dedup) {
+                out.println("  Found " + copies.sum() + " copies of other files (not parsed)");
+                if (detachedCount > 0L) {
+                    out.println("  Indexed " + detachedCount + " copies by name only, since the files they copy could not be indexed");
+                }
+            }
+            out.println("------------------------------------------------------------------------------------");
+            out.println();
+
+            //
+            if (!observedContentTypes.isEmpty()) {
+                List<String> _observedContentTypes = new LinkedList<>(observedContentTypes);
+                Collections.sort(_observedContentTypes);
 
-                //
                 out.println();
+                out.println("------------------------------------------------------------------------------------");
+                out.println("                          All observed content types");
+                out.println("------------------------------------------------------------------------------------");
+                for (String contentType : _observedContentTypes) {
+                    out.println("   " + contentType);
+                }
+                out.println();
+            }
+
+            //
+            if (!processedContentTypes.isEmpty()) {
+                List<String> _processedContentTypes = new LinkedList<>(processedContentTypes);
+                Collections.sort(_processedContentTypes);
+
                 out.println();
                 out.println("------------------------------------------------------------------------------------");
-                out.println("  Processed " + fileCount[0] + " file(s)");
+                out.println("                             Indexed content types");
                 out.println("------------------------------------------------------------------------------------");
+                for (String contentType : _processedContentTypes) {
+                    out.println("   " + contentType);
+                }
                 out.println();
+            }
 
-                //
-                if (!observedContentTypes.isEmpty()) {
-                    List<String> _observedContentTypes = new LinkedList<>(observedContentTypes);
-                    Collections.sort(_observedContentTypes);
-
-                    out.println();
-                    out.println("------------------------------------------------------------------------------------");
-                    out.println("                          All observed content types");
-                    out.println("------------------------------------------------------------------------------------");
-                    for (String contentType : _observedContentTypes) {
-                        out.println("   " + contentType);
-                    }
-                    out.println();
+            //
+            if (!ignoredContentTypes.isEmpty()) {
+                List<String> _ignoredContentTypes = new LinkedList<>(ignoredContentTypes);
+                Collections.sort(_ignoredContentTypes);
+
+                out.println();
+                out.println("------------------------------------------------------------------------------------");
+                out.println("                             Ignored content types");
+                out.println("------------------------------------------------------------------------------------");
+                for (String contentType : _ignoredContentTypes) {
+                    out.println("   " + contentType);
+                }
+                out.println();
+            }
+
+            //
+            if (!scanner.incidents().isEmpty()) {
+                out.println();
+                out.println("------------------------------------------------------------------------------------");
+                out.println("                             Slow or failed files");
+                out.println("------------------------------------------------------------------------------------");
+                for (Scanner.Incident incident : scanner.incidents()) {
+                    out.format("   %8d ms  %s  (%s)  %s\n", incident.elapsedMillis(), incident.path(), incident.contentType(), incident.reason());
                 }
+                out.println();
+            }
+        }
+    }
 
-                //
-                if (!processedContentTypes.isEmpty()) {
-                    List<String> _processedContentTypes = new LinkedList<>(processedContentTypes);
-                    Collections.sort(_processedContentTypes);
+    /**
+     * Adds (or, if update, replaces) the document for a file, or for an entry
+     * of a container file if entry is not null, assigning it to the shard of
+     * the file. Root is the directory being indexed.
+     * <p/>
+     * An entry has path "container#entry", and is removed with its container.
+     * It has the last modification time of the container, but no size or hash.
+     *
+     * @return whether content was indexed, i.e. content type is not ignored
+     */
+    boolean indexFile(
+            IndexWriter[] indexWriters, Path root,
+            Path path, String entry, String contentType, String major, Reader reader,
+            boolean update
+    ) throws IOException {
+        String absolutePath = path.toAbsolutePath().toString();
+        String filename = path.getFileName().toString();
+        if (null != entry) {
+            filename = entry.substring(Math.max(entry.lastIndexOf('/'), entry.lastIndexOf('#')) + 1);
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
 
-                    out.println();
-                    out.println("------------------------------------------------------------------------------------");
-                    out.println("                             Indexed content types");
-                    out.println("------------------------------------------------------------------------------------");
-                    for (String contentType : _processedContentTypes) {
-                        out.println("   " + contentType);
-                    }
-                    out.println();
+        //
+        Document doc = new Document();
+
+        // Things to index: filename, path, content-type, content
+        doc.add(new StringField("filename", filename, Field.Store.YES));
+        doc.add(new StringField("path", null != entry ? absolutePath + "#" + entry : absolutePath, Field.Store.YES));
+        doc.add(new StringField("content-type", contentType, Field.Store.YES));
+        if (null != entry) {
+            doc.add(new StringField("container", absolutePath, Field.Store.YES));
+        }
+
+        // Things to count, when searching
+        doc.add(new SortedSetDocValuesField(Facets.CONTENT_TYPE, new BytesRef(contentType)));
+        doc.add(new SortedSetDocValuesField(Facets.DIRECTORY, new BytesRef(topLevelDirectory(root, path))));
+        if (suffixFields) {
+            doc.add(new Field(SuffixFields.FILENAME, SuffixFields.suffixes(List.of(filename)), SuffixFields.TYPE));
+        }
+
+        // Things to remember, when re-indexing: size, last modified and (optionally) hash
+        if (null == entry) {
+            doc.add(new NumericDocValuesField("size", attributes.size()));
+        }
+        doc.add(new NumericDocValuesField("modified", attributes.lastModifiedTime().toMillis()));
+        if (hashContent && null == entry) {
+            doc.add(new StringField("hash", ContentHash.of(path), Field.Store.YES));
+        }
+
+        boolean indexed;
+        switch (major) {
+            case "audio":
+            case "video":
+            case "img": // incorrect spelling!
+            case "image":
+            case "font":
+                indexed = false;
+                break;
+
+            default:
+                if (suffixFields) {
+                    // Content is streamed, so suffixes are made from terms captured while analyzing it
+                    Set<String> terms = new HashSet<>();
+                    doc.add(new TextField("content", SuffixFields.capture(analyzer.tokenStream("content", reader), terms)));
+                    doc.add(new Field(SuffixFields.CONTENT, SuffixFields.suffixes(terms), SuffixFields.TYPE));
+                } else {
+                    doc.add(new TextField("content", reader));
                 }
+                indexed = true;
+                break;
+        }
+
+        // Content is analyzed while being read, so analysis is what remains
+        // after having waited for extraction
+        IndexWriter indexWriter = writerOf(indexWriters, path);
+        long start = System.nanoTime();
+        if (update) {
+            indexWriter.updateDocument(new Term("path", doc.get("path")), doc);
+        } else {
+            indexWriter.addDocument(doc);
+        }
+        long elapsed = System.nanoTime() - start;
+        Metrics.timer("add_document", contentType).record(elapsed);
+        Metrics.timer("analyze", contentType).record(elapsed - Metrics.readNanos(reader));
+        return indexed;
+    }
+
+    /*
+     * Commits, with a checkpoint of the crawl as user data.
+     */
+    private static void commit(IndexWriter[] indexWriters, Map<String, String> checkpoint) throws IOException {
+        long start = System.nanoTime();
+        for (IndexWriter indexWriter : indexWriters) {
+            indexWriter.setLiveCommitData(checkpoint.entrySet());
+            indexWriter.commit();
+        }
+        Metrics.timer("checkpoint").recordSince(start);
+    }
+
+    /*
+     * The directory, directly below root, that path is in, or root itself.
+     */
+    private static String topLevelDirectory(Path root, Path path) {
+        Path relative = root.relativize(path.toAbsolutePath().normalize());
+        return (relative.getNameCount() > 1 ? root.resolve(relative.getName(0)) : root).toString();
+    }
+
+    private static IndexWriter writerOf(IndexWriter[] indexWriters, Path path) {
+        return indexWriters[Shards.of(path.toAbsolutePath().toString(), indexWriters.length)];
+    }
+
+    /*
+     * Finds the file that path is a copy of, if any. Files are only hashed if
+     * another file of the same size has been seen, in which case that file is
+     * hashed as well. Otherwise path becomes the canonical file for its content.
+     * <p/>
+     * Called concurrently, and copies found concurrently with their canonical file
+     * may occasionally be indexed in full, which is wasteful but harmless.
+     */
+    private static Path canonicalOf(
+            Path path,
+            Map<Long, Path> firstBySize,
+            Set<Long> hashedSizes,
+            Map<String, Path> canonicalByHash
+    ) throws IOException {
+        long size = Files.size(path);
+        Path first = firstBySize.putIfAbsent(size, path);
+        if (null == first) {
+            return null; // unique size, so far
+        }
+
+        if (hashedSizes.add(size)) {
+            canonicalByHash.putIfAbsent(ContentHash.of(first), first);
+        }
+        return canonicalByHash.putIfAbsent(ContentHash.of(path), path);
+    }
+
+    /*
+     * Adds (or replaces, e.g. when resuming) a document for a copy of an indexed file,
+     * without content but referring to the indexed file, or referring to nothing if
+     * canonical is null. The content type is that of the indexed file, if known yet.
+     * Size and last modified are indexed for filtering and sorting, but documents
+     * for copies are always indexed anew when indexing incrementally.
+     */
+    private static void addCopy(
+            IndexWriter indexWriter, Path root, Path path, Path canonical, String contentType,
+            boolean suffixFields
+    ) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        Document doc = new Document();
+        String filename = path.getFileName().toString();
+        doc.add(new StringField("filename", filename, Field.Store.YES));
+        if (suffixFields) {
+            doc.add(new Field(SuffixFields.FILENAME, SuffixFields.suffixes(List.of(filename)), SuffixFields.TYPE));
+        }
+        doc.add(new StringField("path", path.toAbsolutePath().toString(), Field.Store.YES));
+        if (null != canonical) {
+            doc.add(new StringField("canonical", canonical.toAbsolutePath().toString(), Field.Store.YES));
+        }
+        if (null != contentType) {
+            doc.add(new StringField("content-type", contentType, Field.Store.YES));
+            doc.add(new SortedSetDocValuesField(Facets.CONTENT_TYPE, new BytesRef(contentType)));
+        }
+        doc.add(new SortedSetDocValuesField(Facets.DIRECTORY, new BytesRef(topLevelDirectory(root, path))));
+        doc.add(new NumericDocValuesField("size", attributes.size()));
+        doc.add(new NumericDocValuesField("modified", attributes.lastModifiedTime().toMillis()));
 
-                //
-                if (!ignoredContentTypes.isEmpty()) {
-                    List<String> _ignoredContentTypes = new LinkedList<>(ignoredContentTypes);
-                    Collections.sort(_ignoredContentTypes);
+        long start = System.nanoTime();
+        indexWriter.updateDocument(new Term("path", path.toAbsolutePath().toString()), doc);
+        Metrics.timer("add_copy").recordSince(start);
+    }
 
-                    out.println();
-                    out.println("------------------------------------------------------------------------------------");
-                    out.println("                             Ignored content types");
-                    out.println("------------------------------------------------------------------------------------");
-                    for (String contentType : _ignoredContentTypes) {
-                        out.println("   " + contentType);
+    /*
+     * Replaces documents for copies with documents that carry the content type of the
+     * indexed file, now that it is known. Copies of files that were not indexed after all
+     * (e.g. since they failed to parse or timed out) are replaced with documents that
+     * refer to nothing, so that copies are still found by name.
+     *
+     * @return number of copies detached
+     */
+    private static long completeCopies(
+            IndexWriter[] indexWriters, Path root, Map<Path, Queue<Path>> copiesOf, boolean suffixFields
+    ) throws IOException {
+        long detached = 0L;
+        IndexSearcher[] searchers = new IndexSearcher[indexWriters.length];
+        try {
+            for (Map.Entry<Path, Queue<Path>> entry : copiesOf.entrySet()) {
+                String canonical = entry.getKey().toAbsolutePath().toString();
+                int shard = Shards.of(canonical, indexWriters.length);
+                if (null == searchers[shard]) {
+                    // Sees what has been indexed so far, without committing
+                    searchers[shard] = new IndexSearcher(DirectoryReader.open(indexWriters[shard]));
+                }
+                TopDocs indexed = searchers[shard].search(new TermQuery(new Term("path", canonical)), 1);
+                if (indexed.scoreDocs.length > 0) {
+                    String contentType = searchers[shard].storedFields()
+                            .document(indexed.scoreDocs[0].doc, CONTENT_TYPE_FIELD).get("content-type");
+                    for (Path copy : entry.getValue()) {
+                        addCopy(writerOf(indexWriters, copy), root, copy, entry.getKey(), contentType, suffixFields);
                     }
-                    out.println();
+                    continue;
+                }
+                for (Path copy : entry.getValue()) {
+                    addCopy(writerOf(indexWriters, copy), root, copy, null, null, suffixFields);
+                    detached++;
                 }
             }
-        } catch (IOException e) {
-            String info = "Failed to close index: " + e.getMessage();
-            log.warn(info, e);
+        } finally {
+            for (IndexSearcher searcher : searchers) {
+                if (null != searcher) {
+                    searcher.getIndexReader().close();
+                }
+            }
+        }
+        return detached;
+    }
+
+    /*
+     * Times merges, as they are run by the merge threads.
+     */
+    private static final class TimedMergeScheduler extends ConcurrentMergeScheduler {
+        @Override
+        protected void doMerge(MergeSource mergeSource, MergePolicy.OneMerge merge) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.doMerge(mergeSource, merge);
+            } finally {
+                Metrics.timer("merge").recordSince(start);
+                Metrics.counter("merged_docs").add(merge.totalNumDocs());
+            }
         }
     }
 }
@@ -0,0 +1,471 @@
+package demo;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.*;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of counters, gauges and timers (latency histograms),
+ * optionally labelled with a content type.
+ * <p/>
+ * Metrics are exposed through JMX (as attributes of the MBean demo:type=Metrics)
+ * and, with --metrics-file=&lt;file&gt;, periodically dumped to a file, as
+ * JSON if the file name ends with ".json" and in the Prometheus text format
+ * otherwise.
+ */
+final class Metrics {
+    private static final Logger log = LogManager.getLogger(Metrics.class);
+
+    private static final String PREFIX = "disksearch_";
+    private static final String OBJECT_NAME = "demo:type=Metrics";
+
+    private static final Map<Key, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<Key, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService dumper = null;
+    private static Path dumpFile = null;
+
+    private Metrics() {
+    }
+
+    private record Key(String name, String contentType) implements Comparable<Key> {
+        @Override
+        public int compareTo(Key other) {
+            int c = name.compareTo(other.name);
+            return c != 0 ? c : Objects.compare(contentType, other.contentType, Comparator.nullsFirst(Comparator.naturalOrder()));
+        }
+
+        String attribute() {
+            return null == contentType ? name : name + "[" + contentType + "]";
+        }
+    }
+
+    /**
+     * A counter, optionally labelled with a content type (may be null).
+     */
+    static Counter counter(String name, String contentType) {
+        return counters.computeIfAbsent(new Key(name, contentType), key -> new Counter());
+    }
+
+    static Counter counter(String name) {
+        return counter(name, null);
+    }
+
+    /**
+     * A timer, optionally labelled with a content type (may be null).
+     */
+    static Timer timer(String name, String contentType) {
+        return timers.computeIfAbsent(new Key(name, contentType), key -> new Timer());
+    }
+
+    static Timer timer(String name) {
+        return timer(name, null);
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge with the same name.
+     */
+    static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Latency histogram, with buckets at powers of two nanoseconds.
+     */
+    static final class Timer {
+        private static final int BUCKETS = 64;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+        }
+
+        /**
+         * Records time elapsed since start (as given by System.nanoTime()).
+         */
+        void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sumNanos() {
+            return sum.sum();
+        }
+
+        long maxNanos() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile.
+         */
+        long quantileNanos(double quantile) {
+            long total = 0L;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0L) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos());
+                }
+            }
+            return maxNanos();
+        }
+
+        // Bucket i holds values in (2^(i-1), 2^i]
+        private static int bucket(long nanos) {
+            return Math.min(BUCKETS - 1, nanos <= 1L ? 0 : 64 - Long.numberOfLeadingZeros(nanos - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+        }
+    }
+
+    /**
+     * Measures time spent in, and characters read from, a reader. Not
+     * thread safe, as is the case for readers in general.
+     */
+    static final class TimedReader extends FilterReader {
+        private long nanos = 0L;
+        private long characters = 0L;
+
+        TimedReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                int c = in.read();
+                if (c >= 0) {
+                    characters++;
+                }
+                return c;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                int num = in.read(cbuf, off, len);
+                if (num > 0) {
+                    characters += num;
+                }
+                return num;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        long nanos() {
+            return nanos;
+        }
+
+        long characters() {
+            return characters;
+        }
+    }
+
+    /**
+     * Time spent reading from reader, if it is a TimedReader, otherwise 0.
+     */
+    static long readNanos(Reader reader) {
+        return reader instanceof TimedReader timedReader ? timedReader.nanos() : 0L;
+    }
+
+    /**
+     * Registers the MBean and, if configured, starts dumping metrics to file.
+     */
+    static synchronized void start(Options options) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException jme) {
+            String info = "Failed to register metrics MBean: " + jme.getMessage();
+            log.warn(info);
+        }
+
+        String file = options.get("metrics-file", null);
+        if (null != file && null == dumper) {
+            dumpFile = Paths.get(file).toAbsolutePath();
+            long interval = Math.max(1L, options.getLong("metrics-interval", 10L));
+            dumper = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("metrics").daemon(true).factory()
+            );
+            dumper.scheduleWithFixedDelay(Metrics::dump, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops dumping metrics, after a last dump.
+     */
+    static synchronized void stop() {
+        if (null != dumper) {
+            dumper.shutdownNow();
+            dumper = null;
+            dump();
+        }
+    }
+
+    private static void dump() {
+        Path file = dumpFile;
+        if (null == file) {
+            return;
+        }
+        String content = file.getFileName().toString().endsWith(".json") ? json() : prometheus();
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(content);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            String info = "Failed to write metrics to " + file + ": " + ioe.getMessage();
+            log.warn(info);
+        }
+    }
+
+    /**
+     * Metrics in the Prometheus text exposition format.
+     */
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        String previous = null;
+        for (Map.Entry<Key, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            String name = PREFIX + entry.getKey().name() + "_total";
+            if (!name.equals(previous)) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                previous = name;
+            }
+            sb.append(name).append(labels(entry.getKey(), null)).append(' ').append(entry.getValue().get()).append('\n');
+        }
+
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            String name = PREFIX + entry.getKey();
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+
+        previous = null;
+        for (Map.Entry<Key, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            String name = PREFIX + entry.getKey().name() + "_seconds";
+            if (!name.equals(previous)) {
+                sb.append("# TYPE ").append(name).append(" histogram\n");
+                previous = name;
+            }
+            Timer timer = entry.getValue();
+            long cumulative = 0L;
+            // Powers of four, from ~16 us to ~69 s
+            for (int i = 0; i < Timer.BUCKETS; i++) {
+                cumulative += timer.buckets.get(i);
+                if (i >= 14 && i <= 36 && i % 2 == 0) {
+                    String le = Double.toString(Timer.upperBound(i) / 1.0e9);
+                    sb.append(name).append("_bucket").append(labels(entry.getKey(), le)).append(' ').append(cumulative).append('\n');
+                }
+            }
+            sb.append(name).append("_bucket").append(labels(entry.getKey(), "+Inf")).append(' ').append(timer.count()).append('\n');
+            sb.append(name).append("_sum").append(labels(entry.getKey(), null)).append(' ')
+                    .append(String.format(Locale.ROOT, "%.9f", timer.sumNanos() / 1.0e9)).append('\n');
+            sb.append(name).append("_count").append(labels(entry.getKey(), null)).append(' ').append(timer.count()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String labels(Key key, String le) {
+        List<String> labels = new ArrayList<>(2);
+        if (null != key.contentType()) {
+            labels.add("content_type=\"" + key.contentType().replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+        }
+        if (null != le) {
+            labels.add("le=\"" + le + "\"");
+        }
+        return labels.isEmpty() ? "" : "{" + String.join(",", labels) + "}";
+    }
+
+    /**
+     * Metrics as a JSON object.
+     */
+    static String json() {
+        StringBuilder sb = new StringBuilder("{\n  \"counters\": [");
+        String separator = "\n";
+        for (Map.Entry<Key, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            sb.append(separator).append("    {\"name\":").append(SearchService.quote(entry.getKey().name()));
+            sb.append(",\"contentType\":").append(SearchService.quote(entry.getKey().contentType()));
+            sb.append(",\"value\":").append(entry.getValue().get()).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ],\n  \"gauges\": [");
+        separator = "\n";
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            sb.append(separator).append("    {\"name\":").append(SearchService.quote(entry.getKey()));
+            sb.append(",\"value\":").append(entry.getValue().getAsLong()).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ],\n  \"timers\": [");
+        separator = "\n";
+        for (Map.Entry<Key, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            Timer timer = entry.getValue();
+            long count = timer.count();
+            sb.append(separator).append("    {\"name\":").append(SearchService.quote(entry.getKey().name()));
+            sb.append(",\"contentType\":").append(SearchService.quote(entry.getKey().contentType()));
+            sb.append(",\"count\":").append(count);
+            sb.append(",\"totalMillis\":").append(millis(timer.sumNanos()));
+            sb.append(",\"meanMillis\":").append(millis(count > 0 ? timer.sumNanos() / count : 0L));
+            sb.append(",\"p50Millis\":").append(millis(timer.quantileNanos(0.50)));
+            sb.append(",\"p90Millis\":").append(millis(timer.quantileNanos(0.90)));
+            sb.append(",\"p99Millis\":").append(millis(timer.quantileNanos(0.99)));
+            sb.append(",\"maxMillis\":").append(millis(timer.maxNanos())).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1.0e6);
+    }
+
+    /*
+     * Exposes a snapshot of all metrics as read-only attributes. Timers are
+     * exposed as count, total and mean milliseconds.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        private Map<String, Object> snapshot() {
+            Map<String, Object> attributes = new TreeMap<>();
+            for (Map.Entry<Key, Counter> entry : counters.entrySet()) {
+                attributes.put(entry.getKey().attribute(), entry.getValue().get());
+            }
+            for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+                attributes.put(entry.getKey(), entry.getValue().getAsLong());
+            }
+            for (Map.Entry<Key, Timer> entry : timers.entrySet()) {
+                Timer timer = entry.getValue();
+                long count = timer.count();
+                String name = entry.getKey().attribute();
+                attributes.put(name + ".count", count);
+                attributes.put(name + ".totalMillis", timer.sumNanos() / 1.0e6);
+                attributes.put(name + ".meanMillis", count > 0 ? timer.sumNanos() / 1.0e6 / count : 0.0);
+                attributes.put(name + ".maxMillis", timer.maxNanos() / 1.0e6);
+            }
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (null == value) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Object value = snapshot.get(attribute);
+                if (null != value) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(
+                        entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+                        /* readable */ true, /* writable */ false, /* is */ false));
+            }
+            return new MBeanInfo(
+                    Metrics.class.getName(), "disksearch metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line arguments, split into positional arguments and options.
+ * <p/>
+ * Options are given as "--name=value" or, for flags, as "--name" and may
+ * be placed anywhere among the positional arguments.
+ */
+class Options {
+    private static final String PREFIX = "--";
+
+    private final List<String> arguments = new ArrayList<>();
+    private final Map<String, String> options = new HashMap<>();
+
+    Options(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(PREFIX) && arg.length() > PREFIX.length()) {
+                String option = arg.substring(PREFIX.length());
+                int eq = option.indexOf('=');
+                if (eq > 0) {
+                    options.put(option.substring(0, eq), option.substring(eq + 1));
+                } else {
+                    options.put(option, "true");
+                }
+            } else {
+                arguments.add(arg);
+            }
+        }
+    }
+
+    /**
+     * Positional (non-option) arguments, in order.
+     */
+    List<String> arguments() {
+        return arguments;
+    }
+
+    /**
+     * Sets option, e.g. one that is implied by a command.
+     */
+    Options set(String name, String value) {
+        options.put(name, value);
+        return this;
+    }
+
+    boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number: " + value);
+        }
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number: " + value);
+        }
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
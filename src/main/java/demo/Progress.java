@@ -0,0 +1,95 @@
+package demo;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodically reports progress as a single, aggregated line, rather than
+ * a line per file, so that the terminal does not hold up threads doing
+ * the actual work.
+ */
+class Progress implements AutoCloseable {
+    private final PrintWriter out;
+    private final String what;
+    private final long started = System.nanoTime();
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final ScheduledExecutorService reporter;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param what       what is done to files, e.g. "indexed"
+     * @param interval   seconds between reports, 0 to only report when closed
+     */
+    Progress(PrintWriter out, String what, long interval) {
+        this.out = out;
+        this.what = what;
+
+        if (interval > 0L) {
+            reporter = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("progress").daemon(true).factory()
+            );
+            reporter.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+        } else {
+            reporter = null;
+        }
+    }
+
+    void processed() {
+        files.increment();
+    }
+
+    void skipped() {
+        skipped.increment();
+    }
+
+    long processedCount() {
+        return files.sum();
+    }
+
+    long skippedCount() {
+        return skipped.sum();
+    }
+
+    private void report() {
+        long _files = files.sum();
+        double seconds = (System.nanoTime() - started) / 1.0e9;
+        String line = String.format("%10d file(s) %s", _files, what);
+        long _skipped = skipped.sum();
+        if (_skipped > 0L) {
+            line += String.format(", %d skipped", _skipped);
+        }
+        line += String.format(", %.1f files/s, %d s", seconds > 0 ? _files / seconds : 0.0, (long) seconds);
+
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+    /**
+     * Stops reporting, after having reported a last time.
+     */
+    void finish() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (null != reporter) {
+            reporter.shutdownNow();
+        }
+        report();
+    }
+
+    /**
+     * Finishes, unless already done.
+     */
+    @Override
+    public void close() {
+        finish();
+    }
+}
@@ -1,41 +1,169 @@
 package demo;
 
 import demo.filters.BinaryFilterReader;
+import demo.filters.StringsFilterInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.exception.WriteLimitReachedException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.apache.tika.sax.WriteOutContentHandler;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.*;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 class Scanner {
-    private static final String DEFAULT_SOURCE_CHARACTER_ENCODING = "ISO-8859-1";
-    private static final String CONTENT_TYPE_RE = "((?:[a-z][a-z0-9_]*))\\/((?:[a-z][a-z0-9_]*))((;.*?(charset)=((?:[a-z][a-z0-9_\\-]+)))*)";
-    private static final Pattern contentTypePattern = Pattern.compile(CONTENT_TYPE_RE, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
     private static Logger log = LogManager.getLogger(Scanner.class);
+    private static final String DEFAULT_SKIPPED_TYPES = "audio,video,image,img,font";
+    private static final String DEFAULT_CACHE_NAME = "=cache=";
+
+    // Archives and mailboxes, whose entries may be extracted as documents of their own
+    private static final Set<String> CONTAINER_TYPES = Set.of(
+            "application/zip", "application/java-archive", "application/x-tar", "application/x-gtar",
+            "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+            "application/x-archive", "application/x-cpio", "application/x-compress",
+            "application/mbox", "application/vnd.ms-outlook-pst"
+    );
     private final Parser parser;
     private final String nameOfIndexDirectory;
+    private final String nameOfCacheDirectory; // null if no cache
+
+    // Detection ahead of parsing, so we need not parse what will not be indexed anyhow
+    private final Detector detector;
+    private final Set<String> skippedTypes = new HashSet<>(); // major types or types
+
+    // Strings extraction, for files that no parser supports
+    private final MediaTypeRegistry registry;
+    private final Set<MediaType> supportedTypes;
+    private final boolean stringsFallback;
+    private final int stringsMinLength;
+    private final int stringsMaxLength;
+
+    // Pipelining (a single thread means scanning inline, on the calling thread)
+    private final int threads;
+    private final boolean virtualThreads;
+    private final int queueSize;
+    private final int consumers; // threads consuming extractions, including the calling thread
+
+    // Streaming extraction
+    private final int bufferSize;
+    private final boolean unicodeFilter; // retain letters and digits of the whole BMP
+    private final ExecutorService parsers = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name("parser-", 1).daemon(true).factory()
+    );
+
+    // Watchdog
+    private final long timeout; // nanoseconds, 0 means no limit
+    private final int maxCharacters; // -1 means no limit
+    private final boolean metadataOnlyOnTimeout;
+    private final Set<ActiveParse> activeParses = ConcurrentHashMap.newKeySet();
+    private final Queue<Incident> incidents = new ConcurrentLinkedQueue<>();
+
+    // Entries of containers as extractions of their own
+    private final boolean embedded;
+    private final int maxEmbeddedDepth;
+    private final int maxEmbeddedEntries; // per file, including entries of nested containers
+
+    // Extraction in child processes, if not null
+    private final ForkedExtractorPool forkedExtractors;
 
-    Scanner(File tikaConfigFile, final String nameOfIndexDirectory) throws Exception {
+    // Previously extracted content, if not null
+    private final ExtractionCache cache;
+
+    // Metrics
+    private final AtomicInteger busyExtractors = new AtomicInteger();
+    private final AtomicInteger busyConsumers = new AtomicInteger();
+
+    Scanner(File tikaConfigFile, final String nameOfIndexDirectory, Options options) throws Exception {
         TikaConfig config = new TikaConfig(tikaConfigFile);
-        // Detector detector = config.getDetector();
         this.nameOfIndexDirectory = nameOfIndexDirectory;
 
+        // Only magic bytes and filename, i.e. not the container detectors of config.getDetector()
+        detector = config.getMimeRepository();
+        for (String type : options.get("skip-types", DEFAULT_SKIPPED_TYPES).split(",")) {
+            if (!type.isBlank()) {
+                skippedTypes.add(type.trim().toLowerCase());
+            }
+        }
+
+        threads = Math.max(1, options.getInt("threads", 1));
+        virtualThreads = options.getBoolean("virtual-threads", false);
+        queueSize = Math.max(1, options.getInt("queue-size", 4 * threads));
+        // Text is streamed, so a worker parses no faster than its text is consumed
+        consumers = Math.max(1, options.getInt("index-threads", threads));
+        bufferSize = Math.max(1024, options.getInt("buffer-size", 64 * 1024)); // characters
+        unicodeFilter = options.getBoolean("unicode-filter", false);
+
+        timeout = TimeUnit.SECONDS.toNanos(Math.max(0L, options.getLong("timeout", 0L)));
+        int _maxCharacters = options.getInt("max-chars", 0);
+        maxCharacters = _maxCharacters > 0 ? _maxCharacters : -1;
+        metadataOnlyOnTimeout = options.getBoolean("metadata-only-on-timeout", false);
+
+        embedded = options.getBoolean("embedded", false);
+        maxEmbeddedDepth = Math.max(1, options.getInt("max-embedded-depth", 5));
+        maxEmbeddedEntries = Math.max(1, options.getInt("max-embedded", 10000));
+
+        if (options.getBoolean("fork", false)) {
+            forkedExtractors = new ForkedExtractorPool(
+                    tikaConfigFile, threads,
+                    options.get("fork-heap", "512m"),
+                    options.getInt("fork-max-files", 1000),
+                    maxCharacters
+            );
+        } else {
+            forkedExtractors = null;
+        }
+
+        if (timeout > 0L) {
+            long period = Math.min(TimeUnit.SECONDS.toNanos(1), Math.max(timeout / 4, TimeUnit.MILLISECONDS.toNanos(50)));
+            ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("watchdog").daemon(true).factory()
+            );
+            watchdog.scheduleWithFixedDelay(this::watch, period, period, TimeUnit.NANOSECONDS);
+        }
+
         parser = new AutoDetectParser(config);
+
+        registry = config.getMediaTypeRegistry();
+        supportedTypes = parser.getSupportedTypes(new ParseContext());
+        stringsFallback = options.getBoolean("strings", true);
+        stringsMinLength = options.getInt("strings-min", 4);
+        stringsMaxLength = options.getInt("strings-max", 40);
+
+        if (options.getBoolean("cache", false)) {
+            Path cacheDirectory = Paths.get(options.get("cache-dir", DEFAULT_CACHE_NAME)).toAbsolutePath();
+            cache = ExtractionCache.open(cacheDirectory, options.getLong("cache-max-mb", 4096L) * 1024L * 1024L);
+            nameOfCacheDirectory = cacheDirectory.getFileName().toString();
+        } else {
+            cache = null;
+            nameOfCacheDirectory = null;
+        }
     }
 
     /**
@@ -75,17 +203,543 @@ class Scanner {
         return true; // Configuration existed
     }
 
-    private Reader getReader(InputStream inputStream, Metadata metadata) throws IOException, TikaException, SAXException {
-        ParseContext context = new ParseContext();
+    /*
+     * Parses a file on the current thread, streaming extracted text through a
+     * bounded pipe. The extraction is handed off as soon as the parser starts
+     * producing the document, i.e. when the content type is known, and parsing
+     * then continues -- blocking whenever the pipe is full -- until the
+     * consumer has read all content or closed the reader.
+     *
+     * Handoff is made exactly once, with null if the file could not be
+     * processed (in which case the reason has been logged). If the parse
+     * runs out of time, handoff may be made by the watchdog.
+     *
+     * If the file is a container that is split into entries, every entry is
+     * handed off through entryHandoff before the file itself is handed off.
+     */
+    private void extractFile(
+            File file,
+            Set<String> observedContentTypes,
+            final ExtractionHandoff handoff,
+            final ExtractionHandoff entryHandoff
+    ) throws InterruptedException {
+
+        final Path path = file.toPath();
+        final Metadata metadata = new Metadata();
+        final ContentPipe pipe = new ContentPipe(bufferSize);
+        final ActiveParse active = new ActiveParse(path, metadata, pipe, observedContentTypes, handoff);
+
+        ExtractionCache.Hit hit = null;
+        ExtractionCache.Store store = null; // extracted content is copied here, if not null
+
+        final long extractionStart = System.nanoTime();
+        busyExtractors.incrementAndGet();
+        try {
+            if (timeout > 0L) {
+                activeParses.add(active);
+            }
+
+            if (log.isDebugEnabled()) {
+                String info = "Indexing " + file.getCanonicalPath();
+                log.debug(info);
+            }
+
+            MediaType type = detect(path, metadata);
+            Metrics.timer("detect", type.getBaseType().toString()).recordSince(extractionStart);
+            if (isSkipped(type)) {
+                Metrics.counter("files_skipped", type.getBaseType().toString()).increment();
+                handOff(active, /* metadata only */ true);
+                return;
+            }
+
+            if (isSplit(type)) {
+                extractEntries(path, metadata, active, entryHandoff);
+                return;
+            }
+
+            boolean parsable = isParsable(type);
+            if (null != cache && (parsable || !stringsFallback)) {
+                String hash = cache.hashOf(path);
+                hit = cache.lookup(hash);
+                if (null != hit) {
+                    Metrics.counter("cache_hits", type.getBaseType().toString()).increment();
+                } else {
+                    Metrics.counter("cache_misses", type.getBaseType().toString()).increment();
+                    store = cache.store(hash);
+                }
+            }
+
+            boolean truncated;
+            if (null != hit) {
+                metadata.set("Content-Type", hit.contentType());
+                truncated = readCached(hit, pipe, active);
+            } else if (stringsFallback && !parsable) {
+                Metrics.counter("files_strings", type.getBaseType().toString()).increment();
+                truncated = extractStrings(path, pipe, active);
+            } else {
+                Writer sink = null != store ? tee(pipe.writer(), store) : pipe.writer();
+                if (null != forkedExtractors) {
+                    truncated = forkedExtractors.extract(path, metadata, sink, () -> handOff(active, false), active);
+                } else {
+                    truncated = parse(path, newHandler(sink, active), metadata, active);
+                }
+            }
+            if (truncated) {
+                // Keep what we got so far
+                incidents.add(active.incident("truncated at " + maxCharacters + " characters"));
+                Metrics.counter("files_truncated", typeOf(metadata)).increment();
+            } else if (null != store) {
+                // Truncated content depends on --max-chars, so is not worth keeping
+                store.commit(typeOf(metadata));
+            }
+            pipe.writer().close();
+            Metrics.counter("files_extracted", typeOf(metadata)).increment();
+
+        } catch (Throwable t) {
+            if (active.timedOut) {
+                return; // reported by the watchdog, and handed off below
+            }
+            Metrics.counter("files_failed", typeOf(metadata)).increment();
+
+            if (active.handedOff.get()) {
+                // Let the consumer know, unless it has already given up on the content
+                pipe.fail(t);
+                if (!pipe.isClosedByReader()) {
+                    incidents.add(active.incident("failed: " + t.getMessage()));
+                    if (log.isDebugEnabled()) {
+                        String info = "Extraction failed midway for file \"" + file.getAbsolutePath() + "\": " + t.getMessage();
+                        log.debug(info);
+                    }
+                }
+                return;
+            }
+
+            if (t instanceof TikaException) {
+                String info = "TIKA could not process file \"" + file.getAbsolutePath() + "\": " + t.getMessage();
+                log.info(info);
+            } else if (t instanceof SAXException) {
+                String info = "Parse error: " + t.getMessage();
+                log.warn(info);
+            } else {
+                String info = "Failed to index file \"" + file.getAbsolutePath() + "\":  " + t.getMessage();
+                log.info(info);
+            }
+            incidents.add(active.incident("failed: " + t.getMessage()));
+
+            if (active.handedOff.compareAndSet(false, true)) {
+                handoff.accept(null);
+            }
+            return;
+
+        } finally {
+            if (null != hit) {
+                try {
+                    hit.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (null != store) {
+                store.close(); // discards content, unless committed
+            }
+
+            if (active.started > 0L) {
+                // Time spent parsing (or reading from the cache), but not waiting for the consumer
+                String contentType = typeOf(metadata);
+                Metrics.timer(null != hit ? "cache_read" : "parse", contentType).record(System.nanoTime() - active.started - active.blockedNanos());
+                if (null == hit) {
+                    Metrics.counter("read_bytes", contentType).add(file.length());
+                }
+            }
+            Metrics.counter("extractor_busy_nanos").add(System.nanoTime() - extractionStart);
+            busyExtractors.decrementAndGet();
+
+            if (timeout > 0L) {
+                activeParses.remove(active);
+                synchronized (active) {
+                    // From here on, the watchdog leaves this parse (and thread) alone
+                    active.finished = true;
+                    if (active.timedOut) {
+                        // Clear interrupt set by watchdog, so as not to affect the next file
+                        Thread.interrupted();
+                    }
+                }
+                if (active.timedOut && active.handedOff.compareAndSet(false, true)) {
+                    // The watchdog could not hand off without blocking
+                    active.handoff.accept(timedOutExtraction(active));
+                }
+            }
+        }
+
+        // Parser may never have started a document, but we may still know the content type
+        handOff(active, false);
+    }
+
+    /*
+     * Handler writing body content to sink, which hands off extraction when
+     * the parser starts producing the document.
+     */
+    private ContentHandler newHandler(Writer sink, final ActiveParse active) {
+        return new ContentHandlerDecorator(
+                new BodyContentHandler(new WriteOutContentHandler(sink, maxCharacters))) {
+            @Override
+            public void startDocument() throws SAXException {
+                try {
+                    handOff(active, /* metadata only? */ false);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SAXException("Interrupted while handing off extraction");
+                }
+                super.startDocument();
+            }
+        };
+    }
+
+    /*
+     * Writes to both writer and copy. Closing it closes neither.
+     */
+    private static Writer tee(final Writer writer, final Writer copy) {
+        return new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                writer.write(cbuf, off, len);
+                copy.write(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+                copy.flush();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /*
+     * Detects type of file from its name and magic bytes, setting the
+     * Content-Type of metadata.
+     */
+    private MediaType detect(Path path, Metadata metadata) throws IOException {
+        metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, path.getFileName().toString());
+        try (InputStream is = TikaInputStream.get(path)) {
+            MediaType type = detector.detect(is, metadata);
+            metadata.set("Content-Type", type.toString());
+            return type;
+        }
+    }
+
+    /*
+     * Content type, without parameters, as known so far.
+     */
+    private static String typeOf(Metadata metadata) {
+        String contentType = metadata.get("Content-Type");
+        if (null == contentType) {
+            return "unknown";
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    }
+
+    private boolean isSkipped(MediaType type) {
+        if (skippedTypes.isEmpty()) {
+            return false;
+        }
+        String major = type.getType().toLowerCase();
+        return skippedTypes.contains(major) || skippedTypes.contains(major + "/" + type.getSubtype().toLowerCase());
+    }
+
+    /*
+     * Whether some parser supports the type, or one of its supertypes (short
+     * of application/octet-stream, which is where everything ends up).
+     */
+    private boolean isParsable(MediaType type) {
+        for (MediaType t = type.getBaseType(); null != t && !MediaType.OCTET_STREAM.equals(t); t = registry.getSupertype(t)) {
+            if (supportedTypes.contains(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Extracts strings from file, as with strings(1), rather than parsing it.
+     * Returns true if content was truncated.
+     */
+    private boolean extractStrings(Path path, ContentPipe pipe, ActiveParse active) throws IOException, InterruptedException {
+        handOff(active, /* metadata only? */ false);
+
+        try (InputStream is = new StringsFilterInputStream(path, stringsMinLength, stringsMaxLength);
+             Reader reader = new InputStreamReader(is, StringsFilterInputStream.CHARSET)) {
+            active.startClock();
+            active.abortWith(is);
+            return copy(reader, pipe.writer());
+        }
+    }
+
+    /*
+     * Reads previously extracted content from the cache, rather than parsing
+     * file. Returns true if content was truncated.
+     */
+    private boolean readCached(ExtractionCache.Hit hit, ContentPipe pipe, ActiveParse active) throws IOException, InterruptedException {
+        handOff(active, /* metadata only? */ false);
+
+        active.startClock();
+        active.abortWith(hit.source());
+        return copy(hit.reader(), pipe.writer());
+    }
+
+    /*
+     * Copies at most maxCharacters characters. Returns true if content was truncated.
+     */
+    private boolean copy(Reader reader, Writer writer) throws IOException {
+        char[] buffer = new char[8 * 1024];
+        long remaining = maxCharacters > 0 ? maxCharacters : Long.MAX_VALUE;
+        int num;
+        while ((num = reader.read(buffer, 0, buffer.length)) > 0) {
+            if (num > remaining) {
+                writer.write(buffer, 0, (int) remaining);
+                return true;
+            }
+            writer.write(buffer, 0, num);
+            remaining -= num;
+        }
+        return false;
+    }
+
+    /*
+     * Parses file in this process. Returns true if content was truncated.
+     */
+    private boolean parse(
+            Path path,
+            ContentHandler handler,
+            Metadata metadata,
+            ActiveParse active
+    ) throws IOException, TikaException, SAXException {
+
+        try (InputStream is = Files.newInputStream(path)) {
+            active.startClock();
+            active.abortWith(is);
+            try {
+                parser.parse(is, handler, metadata, new ParseContext());
+            } catch (Exception e) {
+                if (!WriteLimitReachedException.isWriteLimitReached(e)) {
+                    throw e;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Hands off extraction, unless already done. If metadata only,
+     * the extraction will have no content.
+     */
+    private void handOff(ActiveParse active, boolean metadataOnly) throws InterruptedException {
+        if (!active.handedOff.compareAndSet(false, true)) {
+            return;
+        }
+        Extraction extraction = newExtraction(active, null, active.metadata, active.pipe, metadataOnly);
+        active.blockedSince = System.nanoTime();
+        try {
+            active.handoff.accept(extraction);
+        } finally {
+            active.unblocked();
+        }
+    }
+
+    /*
+     * Extraction of the file being parsed, or of an entry in it if entry is not
+     * null, or null if the content type is not known. Unless content is going to
+     * be read from pipe, the reader end is closed so as to abort parsing.
+     */
+    private Extraction newExtraction(ActiveParse active, String entry, Metadata metadata, ContentPipe pipe, boolean metadataOnly) {
+        Extraction extraction = null;
+
+        String contentType = metadata.get("Content-Type");
+        if (null != contentType) {
+            active.observedContentTypes.add(contentType);
+
+            // Content is handed over as characters, so any charset parameter is of no interest here
+            MediaType type = MediaType.parse(contentType.toLowerCase());
+            if (null != type) {
+                String major = type.getType();
+                String minor = type.getSubtype();
+                String _contentType = type.getBaseType().toString();
+
+                Metrics.TimedReader extracted = null;
+                Reader reader = Reader.nullReader();
+                if (!metadataOnly) {
+                    extracted = new Metrics.TimedReader(pipe.reader());
+                    reader = new Metrics.TimedReader(new BinaryFilterReader(extracted, unicodeFilter));
+                }
+                extraction = new Extraction(active.path, entry, _contentType, major, minor, reader, extracted, active);
+            }
+        }
+
+        if (null != pipe && (null == extraction || metadataOnly)) {
+            // No one is going to read the content, so abort parsing
+            try {
+                pipe.reader().close();
+            } catch (IOException ignore) {
+            }
+        }
+        return extraction;
+    }
+
+    /*
+     * Whether type is a container that is split into its entries.
+     */
+    private boolean isSplit(MediaType type) {
+        return embedded && null == forkedExtractors && CONTAINER_TYPES.contains(type.getBaseType().toString());
+    }
 
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            ContentHandler handler = new BodyContentHandler(outputStream);
+    /*
+     * Parses a container (an archive or a mailbox) in this process, handing off
+     * every entry as an extraction of its own as soon as the parser reaches it,
+     * so entries are streamed one at a time. The container itself is handed off
+     * last and without content, since its content is that of its entries.
+     */
+    private void extractEntries(
+            Path path,
+            Metadata metadata,
+            ActiveParse active,
+            final ExtractionHandoff entryHandoff
+    ) throws InterruptedException {
 
-            parser.parse(inputStream, handler, metadata, context);
+        try (InputStream is = Files.newInputStream(path)) {
+            active.startClock();
+            active.abortWith(is);
+            new EntryExtractor(active, entryHandoff).parse(is, metadata);
+            Metrics.counter("files_extracted", typeOf(metadata)).increment();
 
-            String bodyContent = outputStream.toString(DEFAULT_SOURCE_CHARACTER_ENCODING);
-            return new BinaryFilterReader(new StringReader(bodyContent));
+        } catch (Exception e) {
+            if (active.timedOut) {
+                return; // reported by the watchdog, and handed off when done
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Interrupted while extracting entries of " + path);
+            }
+            Metrics.counter("files_failed", typeOf(metadata)).increment();
+            String info = "Could not extract (all) entries of \"" + path.toAbsolutePath() + "\": " + e.getMessage();
+            log.info(info);
+            incidents.add(active.incident("failed: " + e.getMessage()));
         }
+        handOff(active, /* metadata only */ true);
+    }
+
+    /*
+     * Aborts parses that have been running for longer than allowed. Time spent
+     * waiting for consumers, to take an extraction or to make room in a pipe
+     * (of a file or of an entry in it), does not count.
+     *
+     * The watchdog never blocks, since it is alone in watching all parses. It only
+     * interrupts a parse that is still running, while holding its lock, and only
+     * offers to hand off; if that would block, the parsing thread hands off once
+     * the parser gives up.
+     */
+    private void watch() {
+        long now = System.nanoTime();
+        for (ActiveParse active : activeParses) {
+            long started = active.started;
+            if (started == 0L) {
+                continue; // e.g. waiting for a child process to start
+            }
+            long elapsed = now - started - active.blockedNanos();
+            if (elapsed <= timeout) {
+                continue;
+            }
+
+            String info = "Extraction of file \"" + active.path.toAbsolutePath() + "\" timed out after "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms";
+
+            synchronized (active) {
+                if (active.finished || active.timedOut) {
+                    continue;
+                }
+                active.timedOut = true;
+                active.pipe.fail(new ExtractionTimeoutException(info));
+
+                // Interrupting is only safe while the parse is running, i.e. while it is not finished
+                active.thread.interrupt();
+
+                if (active.handedOff.compareAndSet(false, true) && !active.handoff.offer(timedOutExtraction(active))) {
+                    active.handedOff.set(false);
+                }
+            }
+            activeParses.remove(active);
+
+            log.info(info);
+            incidents.add(active.incident("timed out"));
+            Metrics.counter("files_timed_out", typeOf(active.metadata)).increment();
+
+            // Pull the rug from under the parser, by closing its input stream or by
+            // killing its process. A parser running in this process that is stuck in a
+            // tight loop will not notice, in which case the thread is lost until it does.
+            active.abort();
+        }
+    }
+
+    /*
+     * What to hand off for a parse that timed out: metadata only, if so
+     * configured, or nothing.
+     */
+    private Extraction timedOutExtraction(ActiveParse active) {
+        return metadataOnlyOnTimeout ? newExtraction(active, null, active.metadata, active.pipe, true) : null;
+    }
+
+    /**
+     * Files that were slow or failed to extract, since this scanner was created.
+     */
+    Collection<Incident> incidents() {
+        List<Incident> _incidents = new ArrayList<>(incidents);
+        _incidents.sort(Comparator.comparing(incident -> incident.path().toString()));
+        return _incidents;
+    }
+
+    private boolean consume(Extraction extraction, final ScanPerFileRunnable runnable) {
+        final long start = System.nanoTime();
+        busyConsumers.incrementAndGet();
+        try {
+            return runnable.run(
+                    extraction.path(), extraction.entry(), extraction.contentType(),
+                    extraction.major(), extraction.minor(),
+                    extraction.reader()
+            );
+        } catch (Throwable t) {
+            if (extraction.parse().timedOut && metadataOnlyOnTimeout) {
+                // Content was partially consumed when the extraction timed out, try again without content
+                return consume(new Extraction(
+                        extraction.path(), extraction.entry(), extraction.contentType(),
+                        extraction.major(), extraction.minor(),
+                        Reader.nullReader(), null, extraction.parse()
+                ), runnable);
+            }
+            String entry = null != extraction.entry() ? "#" + extraction.entry() : "";
+            String info = "Failed to index file \"" + extraction.path().toAbsolutePath() + entry + "\":  " + t.getMessage();
+            log.info(info);
+        } finally {
+            // Releases the parser, if content was not (completely) read
+            try {
+                extraction.reader().close();
+            } catch (IOException ignore) {
+            }
+
+            Metrics.TimedReader extracted = extraction.extracted();
+            if (null != extracted) {
+                Metrics.counter("extracted_chars", extraction.contentType()).add(extracted.characters());
+                if (extraction.reader() instanceof Metrics.TimedReader filtered) {
+                    // Time spent in the filter itself, not waiting for the parser
+                    Metrics.timer("filter", extraction.contentType()).record(filtered.nanos() - extracted.nanos());
+                }
+            }
+            Metrics.timer("consume", extraction.contentType()).recordSince(start);
+            Metrics.counter("consumer_busy_nanos").add(System.nanoTime() - start);
+            busyConsumers.decrementAndGet();
+        }
+        return false;
     }
 
     private boolean scanFile(
@@ -94,50 +748,168 @@ class Scanner {
             final ScanPerFileRunnable runnable
     ) throws IOException {
 
-        final Path path = file.toPath();
-        try (InputStream is = Files.newInputStream(path)) {
+        // Content is consumed on this thread, so parsing has to run on another. The file
+        // is handed off once, but entries of a container are handed off before it.
+        final BlockingQueue<Extraction> handoffs = new LinkedBlockingQueue<>();
+        parsers.execute(() -> {
+            try {
+                extractFile(file, observedContentTypes, handoffTo(handoffs), handoffTo(handoffs));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                handoffs.add(Extraction.END);
+            }
+        });
 
-            if (log.isDebugEnabled()) {
-                String info = "Indexing " + file.getCanonicalPath();
-                log.debug(info);
+        try {
+            boolean processed = false;
+            Extraction extraction;
+            while ((extraction = handoffs.take()) != Extraction.END) {
+                if (consume(extraction, runnable) && null == extraction.entry()) {
+                    processed = true;
+                }
             }
+            return processed;
 
-            Metadata metadata = new Metadata();
-            final Reader reader = getReader(is, metadata);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning file: " + file);
+        }
+    }
 
-            String contentType = metadata.get("Content-Type");
-            observedContentTypes.add(contentType);
+    /**
+     * Scans a directory hierarchy, calling perFileRunnable for every file that
+     * could be processed and perDirectoryRunnable after each subdirectory has
+     * been completely processed (i.e. its files and subdirectories).
+     * <p/>
+     * The reader handed to perFileRunnable streams content while the file is
+     * being parsed, and is only valid during the call.
+     * <p/>
+     * With more than one thread configured, the scan is pipelined and the
+     * observedContentTypes set will be updated from several threads, so it
+     * has to be safe for concurrent use. With more than one index thread
+     * configured, both runnables are called concurrently from the calling
+     * thread and from additional consumer threads, and so have to be
+     * thread safe as well. Otherwise they are called from the calling thread.
+     *
+     * @return number of files for which perFileRunnable returned true
+     */
+    public long scanDirectory(
+            File directoryToIndex,
+            Set<String> observedContentTypes,
+            final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws IOException {
 
-            Matcher ctm = contentTypePattern.matcher(contentType.toLowerCase());
-            if (ctm.matches()) {
-                String major = ctm.group(1);
-                String minor = ctm.group(2);
-                String _contentType = major + "/" + minor;
+        return scanDirectory(directoryToIndex, observedContentTypes, perDirectoryRunnable, path -> true, perFileRunnable);
+    }
 
-                String charset = ctm.group(6);
-                if (null == charset || charset.isEmpty()) {
-                    charset = DEFAULT_SOURCE_CHARACTER_ENCODING;
-                }
+    /**
+     * Scans a directory hierarchy, as above, but only runs Tika on files
+     * accepted by perFileFilter. The filter is called before extraction and,
+     * when pipelined, from the extraction workers.
+     */
+    public long scanDirectory(
+            File directoryToIndex,
+            Set<String> observedContentTypes,
+            final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileFilter perFileFilter,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws IOException {
+
+        return scanDirectory(directoryToIndex, observedContentTypes, directory -> true, perDirectoryRunnable, perFileFilter, perFileRunnable);
+    }
+
+    /**
+     * Scans a directory hierarchy, as above, but leaves out subdirectories
+     * (and everything below them) not accepted by perDirectoryFilter. The
+     * filter is called while walking the hierarchy, and perDirectoryRunnable
+     * is not called for directories left out.
+     */
+    public long scanDirectory(
+            File directoryToIndex,
+            Set<String> observedContentTypes,
+            final ScanPerDirectoryFilter perDirectoryFilter,
+            final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileFilter perFileFilter,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws IOException {
 
-                return runnable.run(path, _contentType, major, minor, charset, reader);
+        try {
+            if (threads > 1 || consumers > 1) {
+                return scanDirectoryPipelined(directoryToIndex, observedContentTypes, perDirectoryFilter, perDirectoryRunnable, perFileFilter, perFileRunnable);
+            }
+            return scanDirectoryInline(directoryToIndex, observedContentTypes, perDirectoryFilter, perDirectoryRunnable, perFileFilter, perFileRunnable);
+        } finally {
+            if (null != cache) {
+                cache.flush();
             }
-        } catch (TikaException tikae) {
-            String info = "TIKA could not process file \"" + file.getAbsolutePath() + "\": " + tikae.getMessage();
+        }
+    }
+
+    /**
+     * Scans individual files, e.g. files that are known to have changed,
+     * one at a time from the calling thread. Files that cannot be read, or
+     * are empty, are not processed.
+     *
+     * @return number of files for which perFileRunnable returned true
+     */
+    public long scanFiles(
+            Collection<Path> files,
+            Set<String> observedContentTypes,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws IOException {
+
+        long fileCount = 0L;
+        try {
+            for (Path path : files) {
+                File file = path.toFile();
+                if (file.isFile() && file.canRead() && file.length() > 0 && scanFile(file, observedContentTypes, perFileRunnable)) {
+                    fileCount++;
+                }
+            }
+        } finally {
+            if (null != cache) {
+                cache.flush();
+            }
+        }
+        return fileCount;
+    }
+
+    /*
+     * Whether directory is one of our own, i.e. the index or the cache.
+     */
+    boolean isIgnored(File directory) {
+        String name = directory.getName();
+        return nameOfIndexDirectory.equals(name) || name.equals(nameOfCacheDirectory);
+    }
+
+    private boolean accepts(Path directory, final ScanPerDirectoryFilter filter) {
+        try {
+            return filter.accept(directory);
+        } catch (Throwable t) {
+            String info = "Failed to check directory \"" + directory + "\", scanning anyhow: " + t.getMessage();
             log.info(info);
-        } catch (SAXException saxe) {
-            String info = "Parse error: " + saxe.getMessage();
-            log.warn(info);
+        }
+        return true;
+    }
+
+    private boolean accepts(File file, final ScanPerFileFilter filter) {
+        try {
+            return filter.accept(file.toPath());
         } catch (Throwable t) {
-            String info = "Failed to index file \"" + file.getAbsolutePath() + "\":  " + t.getMessage();
+            String info = "Failed to check file \"" + file.getAbsolutePath() + "\", processing anyhow: " + t.getMessage();
             log.info(info);
         }
-        return false;
+        return true;
     }
 
-    public long scanDirectory(
+    private long scanDirectoryInline(
             File directoryToIndex,
             Set<String> observedContentTypes,
+            final ScanPerDirectoryFilter perDirectoryFilter,
             final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileFilter perFileFilter,
             final ScanPerFileRunnable perFileRunnable
     ) throws IOException {
 
@@ -149,7 +921,7 @@ class Scanner {
                 if (entry.isFile() && entry.canRead() && entry.length() > 0
                 ) {
                     try {
-                        if (scanFile(entry, observedContentTypes, perFileRunnable)) {
+                        if (accepts(entry, perFileFilter) && scanFile(entry, observedContentTypes, perFileRunnable)) {
                             fileCount++;
                         }
                     } catch (IOException ioe) {
@@ -157,11 +929,11 @@ class Scanner {
                         log.warn(info);
                     }
                 } else if (entry.isDirectory()) {
-                    if (nameOfIndexDirectory.equals(entry.getName())) {
-                        log.info("Ignoring index database: " + nameOfIndexDirectory);
-                    } else {
-                        fileCount += scanDirectory(entry, observedContentTypes, perDirectoryRunnable, perFileRunnable);
-                        perDirectoryRunnable.run();
+                    if (isIgnored(entry)) {
+                        log.info("Ignoring own directory: " + entry.getName());
+                    } else if (accepts(entryPath, perDirectoryFilter)) {
+                        fileCount += scanDirectoryInline(entry, observedContentTypes, perDirectoryFilter, perDirectoryRunnable, perFileFilter, perFileRunnable);
+                        perDirectoryRunnable.run(entryPath);
                     }
                 }
             }
@@ -173,11 +945,645 @@ class Scanner {
         return fileCount;
     }
 
+    /*
+     * Pipelined scanning: one walker thread lists directories and queues files,
+     * a pool of extraction workers runs Tika on them and the calling thread
+     * (possibly helped by additional consumer threads) consumes the results.
+     * Queues between stages are bounded, so a slow consumer stalls the walker
+     * rather than filling the heap.
+     */
+    private long scanDirectoryPipelined(
+            File directoryToIndex,
+            Set<String> observedContentTypes,
+            final ScanPerDirectoryFilter perDirectoryFilter,
+            final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileFilter perFileFilter,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws IOException {
+
+        final BlockingQueue<FileTask> tasks = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Completion> completions = new ArrayBlockingQueue<>(queueSize);
+
+        Metrics.gauge("queue_tasks", tasks::size);
+        Metrics.gauge("queue_completions", completions::size);
+        Metrics.gauge("extractor_threads", () -> threads);
+        Metrics.gauge("extractors_busy", busyExtractors::get);
+        Metrics.gauge("consumer_threads", () -> consumers);
+        Metrics.gauge("consumers_busy", busyConsumers::get);
+
+        ThreadFactory workerFactory = virtualThreads
+                ? Thread.ofVirtual().name("extractor-", 1).factory()
+                : Thread.ofPlatform().name("extractor-", 1).daemon(true).factory();
+
+        Thread[] workers = new Thread[threads];
+        final AtomicInteger liveWorkers = new AtomicInteger(threads);
+        final AtomicBoolean abandoned = new AtomicBoolean(false);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = workerFactory.newThread(() -> {
+                try {
+                    FileTask task;
+                    while ((task = tasks.take()) != FileTask.END) {
+                        final DirectoryTicket directory = task.directory();
+                        if (accepts(task.file(), perFileFilter)) {
+                            extractFile(task.file(), observedContentTypes,
+                                    handoffTo(completions, directory), entryHandoffTo(completions, directory));
+                        } else {
+                            completions.put(new Completion(directory, null, -1));
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // However this worker ends, the consumers must not be left waiting for it
+                    if (liveWorkers.decrementAndGet() == 0) {
+                        end(completions, abandoned);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        Thread walker = Thread.ofPlatform().name("walker").daemon(true).start(() -> {
+            try {
+                try {
+                    walk(directoryToIndex.toPath(), null, perDirectoryFilter, tasks, completions);
+                } finally {
+                    for (int i = 0; i < threads; i++) {
+                        tasks.put(FileTask.END);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final Object directoryLock = new Object();
+        final AtomicLong fileCount = new AtomicLong();
+
+        Thread[] helpers = new Thread[consumers - 1];
+        final Queue<Throwable> helperFailures = new ConcurrentLinkedQueue<>();
+        ThreadFactory helperFactory = Thread.ofPlatform().name("consumer-", 1).daemon(true).factory();
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = helperFactory.newThread(() -> {
+                try {
+                    consumeCompletions(completions, directoryLock, fileCount, perDirectoryRunnable, perFileRunnable);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    helperFailures.add(t);
+                }
+            });
+            helpers[i].start();
+        }
+
+        boolean done = false;
+        try {
+            consumeCompletions(completions, directoryLock, fileCount, perDirectoryRunnable, perFileRunnable);
+            for (Thread helper : helpers) {
+                helper.join();
+            }
+            done = true;
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            String info = "Interrupted while scanning directory: " + directoryToIndex;
+            log.warn(info);
+
+        } finally {
+            if (!done) {
+                abandoned.set(true);
+                walker.interrupt();
+                for (Thread worker : workers) {
+                    worker.interrupt();
+                }
+                for (Thread helper : helpers) {
+                    helper.interrupt();
+                }
+            }
+            // Gauges refer to the state of this scan, so they go with it
+            Metrics.removeGauge("queue_tasks");
+            Metrics.removeGauge("queue_completions");
+            Metrics.removeGauge("extractor_threads");
+            Metrics.removeGauge("extractors_busy");
+            Metrics.removeGauge("consumer_threads");
+            Metrics.removeGauge("consumers_busy");
+        }
+
+        Throwable failure = helperFailures.peek();
+        if (null != failure) {
+            if (failure instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException("Failed to scan directory: " + failure.getMessage(), failure);
+        }
+        return fileCount.get();
+    }
+
+    /*
+     * Consumes completions until the end of the scan, which is passed on to any
+     * other consumer. Directory book-keeping is shared between consumers and
+     * guarded by directoryLock, but the runnables are called without holding it.
+     */
+    private void consumeCompletions(
+            BlockingQueue<Completion> completions,
+            Object directoryLock,
+            AtomicLong fileCount,
+            final ScanPerDirectoryRunnable perDirectoryRunnable,
+            final ScanPerFileRunnable perFileRunnable
+    ) throws InterruptedException, IOException {
+
+        Completion completion;
+        while ((completion = completions.take()) != Completion.END) {
+            if (completion.expected() == Completion.ENTRY) {
+                // An entry of a container, which holds back the directory of the container
+                try {
+                    consume(completion.extraction(), perFileRunnable);
+                } finally {
+                    completion.directory().pendingEntries.decrementAndGet();
+                }
+            } else if (completion.expected() < 0 && null != completion.extraction()
+                    && consume(completion.extraction(), perFileRunnable)) {
+                fileCount.incrementAndGet();
+            }
+
+            List<Path> completedDirectories = null;
+            synchronized (directoryLock) {
+                DirectoryTicket directory = completion.directory();
+                if (completion.expected() >= 0) {
+                    // Directory has been listed
+                    directory.expected = completion.expected();
+                    directory.listed = true;
+                } else if (completion.expected() != Completion.ENTRY) {
+                    directory.completed++;
+                }
+
+                // Propagate completed subdirectories upwards
+                while (directory.listed && directory.completed == directory.expected
+                        && 0 == directory.pendingEntries.get() && null != directory.parent) {
+                    if (null == completedDirectories) {
+                        completedDirectories = new ArrayList<>();
+                    }
+                    completedDirectories.add(directory.path);
+                    directory = directory.parent;
+                    directory.completed++;
+                }
+            }
+
+            if (null != completedDirectories) {
+                for (Path completedDirectory : completedDirectories) {
+                    perDirectoryRunnable.run(completedDirectory);
+                }
+            }
+        }
+
+        // Let other consumers know as well
+        completions.put(Completion.END);
+    }
+
+    /*
+     * Posts the end of the scan for the consumers, even if this thread has been
+     * interrupted, unless the scan has been abandoned (and may have no consumers).
+     */
+    private static void end(BlockingQueue<Completion> completions, AtomicBoolean abandoned) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!abandoned.get()) {
+                try {
+                    if (completions.offer(Completion.END, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void walk(
+            Path directory,
+            DirectoryTicket parent,
+            final ScanPerDirectoryFilter perDirectoryFilter,
+            BlockingQueue<FileTask> tasks,
+            BlockingQueue<Completion> completions
+    ) throws InterruptedException {
+
+        DirectoryTicket ticket = new DirectoryTicket(directory, parent);
+        int expected = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entryPath : stream) {
+                File entry = entryPath.toFile();
+                if (entry.isFile() && entry.canRead() && entry.length() > 0
+                ) {
+                    tasks.put(new FileTask(entry, ticket));
+                    expected++;
+                } else if (entry.isDirectory()) {
+                    if (isIgnored(entry)) {
+                        log.info("Ignoring own directory: " + entry.getName());
+                    } else if (accepts(entryPath, perDirectoryFilter)) {
+                        walk(entryPath, ticket, perDirectoryFilter, tasks, completions);
+                        expected++;
+                    }
+                }
+            }
+        } catch (java.nio.file.FileSystemException fse) {
+            String info = "Failed to scan directory: " + fse.getMessage();
+            log.warn(info, fse);
+        } catch (IOException ioe) {
+            String info = "Failed to scan directory \"" + directory + "\": " + ioe.getMessage();
+            log.warn(info, ioe);
+        }
+
+        completions.put(new Completion(ticket, null, expected));
+    }
+
+    private interface ExtractionHandoff {
+        void accept(Extraction extraction) throws InterruptedException;
+
+        /*
+         * As accept, but returns false rather than blocks.
+         */
+        boolean offer(Extraction extraction);
+    }
+
+    /*
+     * Hands off to the consumer of a single file, which takes extractions (and
+     * not nulls) until the end of the file.
+     */
+    private static ExtractionHandoff handoffTo(final BlockingQueue<Extraction> extractions) {
+        return new ExtractionHandoff() {
+            @Override
+            public void accept(Extraction extraction) throws InterruptedException {
+                if (null != extraction) {
+                    extractions.put(extraction);
+                }
+            }
+
+            @Override
+            public boolean offer(Extraction extraction) {
+                return null == extraction || extractions.offer(extraction);
+            }
+        };
+    }
+
+    /*
+     * Hands off to the consumers of a pipelined scan, for a file in directory.
+     */
+    private static ExtractionHandoff handoffTo(final BlockingQueue<Completion> completions, final DirectoryTicket directory) {
+        return new ExtractionHandoff() {
+            @Override
+            public void accept(Extraction extraction) throws InterruptedException {
+                completions.put(new Completion(directory, extraction, -1));
+            }
+
+            @Override
+            public boolean offer(Extraction extraction) {
+                return completions.offer(new Completion(directory, extraction, -1));
+            }
+        };
+    }
+
+    /*
+     * Hands off to the consumers of a pipelined scan, for an entry of a container
+     * in directory. The entry is pending (in directory) from before it is handed off
+     * and until it has been consumed, so that directory is not completed -- and
+     * possibly checkpointed -- before the entry has been indexed.
+     */
+    private static ExtractionHandoff entryHandoffTo(final BlockingQueue<Completion> completions, final DirectoryTicket directory) {
+        return new ExtractionHandoff() {
+            @Override
+            public void accept(Extraction extraction) throws InterruptedException {
+                directory.pendingEntries.incrementAndGet();
+                try {
+                    completions.put(new Completion(directory, extraction, Completion.ENTRY));
+                } catch (InterruptedException ie) {
+                    directory.pendingEntries.decrementAndGet();
+                    throw ie;
+                }
+            }
+
+            @Override
+            public boolean offer(Extraction extraction) {
+                directory.pendingEntries.incrementAndGet();
+                if (completions.offer(new Completion(directory, extraction, Completion.ENTRY))) {
+                    return true;
+                }
+                directory.pendingEntries.decrementAndGet();
+                return false;
+            }
+        };
+    }
+
+    /*
+     * Extracted content is read through reader, which reads (through a filter) from
+     * extracted. The latter is null if there is no content. Entry is the name of an
+     * entry in a container (with names of enclosing entries, separated by '#') or
+     * null if the extraction is of the file itself.
+     */
+    private record Extraction(Path path, String entry, String contentType, String major, String minor, Reader reader,
+                              Metrics.TimedReader extracted, ActiveParse parse) {
+        static final Extraction END = new Extraction(null, null, null, null, null, null, null, null);
+    }
+
+    /*
+     * Hands off entries of a container as extractions of their own, recursing
+     * into entries that are containers themselves, up to a depth. Entries are
+     * parsed one at a time, on the thread parsing the container, and parsing
+     * blocks whenever the consumer is not keeping up.
+     */
+    private final class EntryExtractor implements EmbeddedDocumentExtractor {
+        private final ActiveParse container;
+        private final ExtractionHandoff handoff;
+        private final EntryExtractor outermost;
+        private final String prefix; // names of enclosing entries
+        private final int depth;
+
+        // Only used on the outermost extractor
+        private int entries = 0;
+        private boolean exceeded = false;
+
+        EntryExtractor(ActiveParse container, ExtractionHandoff handoff) {
+            this.container = container;
+            this.handoff = handoff;
+            this.outermost = this;
+            this.prefix = "";
+            this.depth = 1;
+        }
+
+        private EntryExtractor(EntryExtractor enclosing, String entry) {
+            this.container = enclosing.container;
+            this.handoff = enclosing.handoff;
+            this.outermost = enclosing.outermost;
+            this.prefix = entry + "#";
+            this.depth = enclosing.depth + 1;
+        }
+
+        /*
+         * Parses the container, discarding everything but its entries.
+         */
+        void parse(InputStream is, Metadata metadata) throws IOException, TikaException, SAXException {
+            ParseContext context = new ParseContext();
+            context.set(EmbeddedDocumentExtractor.class, this);
+            parser.parse(is, new DefaultHandler(), metadata, context);
+        }
+
+        @Override
+        public boolean shouldParseEmbedded(Metadata metadata) {
+            if (outermost.entries < maxEmbeddedEntries) {
+                return true;
+            }
+            if (!outermost.exceeded) {
+                outermost.exceeded = true;
+                incidents.add(container.incident("more than " + maxEmbeddedEntries + " entries, the rest were skipped"));
+                Metrics.counter("files_truncated", typeOf(container.metadata)).increment();
+            }
+            return false;
+        }
+
+        @Override
+        public void parseEmbedded(InputStream stream, ContentHandler ignored, Metadata metadata, boolean outputHtml) throws SAXException, IOException {
+            int number = ++outermost.entries;
+            String name = metadata.get(TikaCoreProperties.RESOURCE_NAME_KEY);
+            String entry = prefix + (null != name && !name.isBlank() ? name : "entry-" + number);
+
+            // The container parser reads the next entry from the same stream, so leave it open
+            TikaInputStream is = TikaInputStream.get(CloseShieldInputStream.wrap(stream));
+            MediaType type = detector.detect(is, metadata);
+            metadata.set("Content-Type", type.toString());
+
+            try {
+                if (isSkipped(type)) {
+                    Metrics.counter("entries_skipped", type.getBaseType().toString()).increment();
+                    handOffEntry(entry, metadata, null);
+
+                } else if (depth < maxEmbeddedDepth && isSplit(type)) {
+                    try {
+                        new EntryExtractor(this, entry).parse(is, metadata);
+                    } catch (TikaException | SAXException e) {
+                        if (container.timedOut) {
+                            throw new IOException(e);
+                        }
+                        incidents.add(container.incident("failed on entry " + entry + ": " + e.getMessage()));
+                    }
+                    handOffEntry(entry, metadata, null);
+
+                } else {
+                    ContentPipe pipe = new ContentPipe(bufferSize);
+                    handOffEntry(entry, metadata, pipe);
+                    container.entryPipe = pipe;
+                    try {
+                        parser.parse(is, new BodyContentHandler(new WriteOutContentHandler(pipe.writer(), maxCharacters)), metadata, new ParseContext());
+                        pipe.writer().close();
+                        Metrics.counter("entries_extracted", typeOf(metadata)).increment();
+                    } catch (Exception e) {
+                        if (WriteLimitReachedException.isWriteLimitReached(e)) {
+                            pipe.writer().close(); // keep what we got so far
+                        } else {
+                            // Let the consumer know, but carry on with the next entry
+                            pipe.fail(e);
+                            Metrics.counter("entries_failed", typeOf(metadata)).increment();
+                            if (container.timedOut) {
+                                throw e instanceof IOException ioe ? ioe : new IOException(e);
+                            }
+                        }
+                    } finally {
+                        container.entryDone(pipe);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while handing off entry " + entry);
+            }
+        }
+
+        /*
+         * Hands off entry, without content if pipe is null.
+         */
+        private void handOffEntry(String entry, Metadata metadata, ContentPipe pipe) throws InterruptedException {
+            Extraction extraction = newExtraction(container, entry, metadata, pipe, null == pipe);
+            if (null != extraction) {
+                container.blockedSince = System.nanoTime();
+                try {
+                    handoff.accept(extraction);
+                } finally {
+                    container.unblocked();
+                }
+            }
+        }
+    }
+
+    /**
+     * A file that was slow or failed to extract.
+     */
+    record Incident(Path path, String contentType, long elapsedMillis, String reason) {
+    }
+
+    /**
+     * An extraction that may be aborted, by closing its source.
+     */
+    interface Abortable {
+        /**
+         * Starts counting time spent on extraction.
+         */
+        void startClock();
+
+        void abortWith(Closeable source);
+    }
+
+    /*
+     * A parse in progress, as seen by the watchdog.
+     */
+    private static final class ActiveParse implements Abortable {
+        final Path path;
+        final Metadata metadata;
+        final ContentPipe pipe;
+        final Set<String> observedContentTypes;
+        final ExtractionHandoff handoff;
+
+        final Thread thread = Thread.currentThread();
+        volatile long started = 0L; // not yet running
+        final AtomicBoolean handedOff = new AtomicBoolean(false);
+        volatile Closeable source = null;
+        volatile boolean timedOut = false;
+        boolean finished = false; // guarded by this
+
+        // Time spent waiting for consumers, other than on pipe. Only updated by the parsing thread.
+        volatile long blockedSince = 0L; // while handing off, 0 when not blocked
+        volatile ContentPipe entryPipe = null; // of the entry being extracted, if a container
+        private final AtomicLong otherBlockedNanos = new AtomicLong();
+
+        ActiveParse(Path path, Metadata metadata, ContentPipe pipe, Set<String> observedContentTypes, ExtractionHandoff handoff) {
+            this.path = path;
+            this.metadata = metadata;
+            this.pipe = pipe;
+            this.observedContentTypes = observedContentTypes;
+            this.handoff = handoff;
+        }
+
+        @Override
+        public void startClock() {
+            started = System.nanoTime();
+        }
+
+        @Override
+        public void abortWith(Closeable source) {
+            this.source = source;
+            if (timedOut) {
+                abort();
+            }
+        }
+
+        void abort() {
+            Closeable _source = source;
+            if (null != _source) {
+                try {
+                    _source.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        void unblocked() {
+            otherBlockedNanos.addAndGet(System.nanoTime() - blockedSince);
+            blockedSince = 0L;
+        }
+
+        void entryDone(ContentPipe _entryPipe) {
+            otherBlockedNanos.addAndGet(_entryPipe.writerBlockedNanos());
+            entryPipe = null;
+        }
+
+        /*
+         * Time spent waiting for consumers so far, i.e. waiting to hand off and
+         * waiting to write to the pipe (or, for a container, to pipes of entries).
+         * Some time may momentarily be counted twice, in favour of the parse.
+         */
+        long blockedNanos() {
+            long blocked = pipe.writerBlockedNanos() + otherBlockedNanos.get();
+            long since = blockedSince;
+            if (since != 0L) {
+                blocked += System.nanoTime() - since;
+            }
+            ContentPipe _entryPipe = entryPipe;
+            if (null != _entryPipe) {
+                blocked += _entryPipe.writerBlockedNanos();
+            }
+            return blocked;
+        }
+
+        Incident incident(String reason) {
+            long elapsed = started > 0L ? System.nanoTime() - started - blockedNanos() : 0L;
+            String contentType = metadata.get("Content-Type");
+            return new Incident(path, null != contentType ? contentType : "unknown", TimeUnit.NANOSECONDS.toMillis(elapsed), reason);
+        }
+    }
+
+    /**
+     * Signals that extraction of a file ran out of time.
+     */
+    static class ExtractionTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExtractionTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private record FileTask(File file, DirectoryTicket directory) {
+        static final FileTask END = new FileTask(null, null);
+    }
+
+    /*
+     * Either the outcome of extracting a file (expected < 0), or the
+     * notification that a directory has been listed and how many entries
+     * (files and subdirectories) to expect from it.
+     */
+    private record Completion(DirectoryTicket directory, Extraction extraction, int expected) {
+        static final int ENTRY = -2;
+        static final Completion END = new Completion(null, null, -1);
+    }
+
+    /*
+     * Book-keeping for a directory being scanned. Only accessed by consumers,
+     * while holding the directory lock.
+     */
+    private static final class DirectoryTicket {
+        final Path path;
+        final DirectoryTicket parent;
+        boolean listed = false;
+        int expected = 0;
+        int completed = 0;
+        // Entries of containers in this directory, handed off but not yet consumed
+        final AtomicInteger pendingEntries = new AtomicInteger();
+
+        DirectoryTicket(Path path, DirectoryTicket parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    public interface ScanPerDirectoryFilter {
+        boolean accept(Path directory) throws IOException;
+    }
+
     public interface ScanPerDirectoryRunnable {
-        void run() throws IOException;
+        void run(Path directory) throws IOException;
     }
 
+    public interface ScanPerFileFilter {
+        boolean accept(Path path) throws IOException;
+    }
+
+    /**
+     * Called for every file processed and, if containers are split, for every
+     * entry of a container (with the path of the container and the name of the
+     * entry, which is null for the file itself) before the container itself.
+     */
     public interface ScanPerFileRunnable {
-        boolean run(Path path, String contentType, String major, String minor, String charset, Reader reader) throws IOException;
+        boolean run(Path path, String entry, String contentType, String major, String minor, Reader reader) throws IOException;
     }
 }
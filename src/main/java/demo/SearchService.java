@@ -0,0 +1,412 @@
+package demo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long-lived search service, answering queries over HTTP with JSON.
+ * <p/>
+ * A single searcher is shared between all requests and refreshed in the
+ * background, so changes committed by an indexer become visible without
+ * restarting the service. Requests are handled on virtual threads.
+ * <p/>
+ * Endpoints:
+ * <pre>
+ *   GET /search?q=&lt;query&gt;[&amp;field=&lt;field&gt;][&amp;n=&lt;max hits&gt;][&amp;after=&lt;cursor&gt;]
+ *              [&amp;sort=size|modified[:asc]][&amp;facets=true]
+ *              [&amp;min-size=&lt;bytes&gt;][&amp;max-size=&lt;bytes&gt;][&amp;modified-after=&lt;date&gt;][&amp;modified-before=&lt;date&gt;]
+ *   GET /stats
+ * </pre>
+ * A page of hits that may be followed by more has a "next" cursor, to pass
+ * as "after" to get the next page. A cursor refers to documents of the index
+ * as it was searched, so once the searcher has been refreshed with changes
+ * (e.g. by an indexer or a watcher) the cursor is stale and rejected, and the
+ * search has to start over.
+ */
+class SearchService {
+    private static final Logger log = LogManager.getLogger(SearchService.class);
+
+    private final List<Directory> shards;
+    private final Analyzer analyzer;
+
+    private final int port;
+    private final long refreshInterval; // milliseconds
+    private final int maxHits;
+    private final int countThreshold; // hits are counted accurately up to this number
+
+    // Statistics
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder failedQueries = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0L);
+
+    SearchService(Directory indexDirectory, Analyzer analyzer, Options options) {
+        this(List.of(indexDirectory), analyzer, options);
+    }
+
+    /**
+     * Serves searches over all shards, searched concurrently if more than one.
+     */
+    SearchService(List<Directory> shards, Analyzer analyzer, Options options) {
+        this.shards = shards;
+        this.analyzer = analyzer;
+
+        port = options.getInt("port", 8080);
+        refreshInterval = Math.max(100L, options.getLong("refresh-interval", 1000L));
+        maxHits = Math.max(1, options.getInt("max-hits", 100));
+        countThreshold = Math.max(0, options.getInt("count-threshold", 1000));
+    }
+
+    /**
+     * Serves until the process is terminated.
+     */
+    void serve(PrintWriter out) throws IOException, InterruptedException {
+        ReferenceManager<IndexSearcher> searcherManager;
+        if (shards.size() == 1) {
+            searcherManager = new SearcherManager(shards.get(0), /* default searcher factory */ null);
+        } else {
+            searcherManager = new ShardedSearcherManager(shards, Shards.newExecutor(shards));
+        }
+        serve(searcherManager, out);
+    }
+
+    /**
+     * Serves from a searcher manager, which is refreshed in the background,
+     * until the process is terminated.
+     */
+    void serve(ReferenceManager<IndexSearcher> searcherManager, PrintWriter out) throws IOException, InterruptedException {
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("searcher-refresh").daemon(true).factory()
+        );
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException ioe) {
+                String info = "Failed to refresh searcher: " + ioe.getMessage();
+                log.warn(info, ioe);
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), /* backlog */ 1024);
+        server.setExecutor(executor);
+        server.createContext("/search", exchange -> handle(exchange, () -> search(searcherManager, exchange.getRequestURI())));
+        server.createContext("/stats", exchange -> handle(exchange, this::stats));
+        server.start();
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(/* seconds to finish ongoing requests */ 1);
+            executor.shutdown();
+            refresher.shutdown();
+            try {
+                searcherManager.close();
+            } catch (IOException ignore) {
+            }
+            stopped.countDown();
+        }));
+
+        out.println("Serving searches on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/search?q=...");
+        out.flush();
+
+        stopped.await();
+    }
+
+    private interface Handler {
+        String handle() throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = "{\"error\":\"Only GET is supported\"}";
+            } else {
+                body = handler.handle();
+            }
+        } catch (IllegalArgumentException | ParseException e) {
+            status = 400;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (Exception e) {
+            status = 500;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+            String info = "Failed to handle request " + exchange.getRequestURI() + ": " + e.getMessage();
+            log.warn(info, e);
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private String search(ReferenceManager<IndexSearcher> searcherManager, URI uri) throws IOException, ParseException {
+        Map<String, String> parameters = parameters(uri);
+
+        String input = parameters.get("q");
+        if (null == input || input.isBlank()) {
+            throw new IllegalArgumentException("Missing query parameter 'q'");
+        }
+        String field = parameters.getOrDefault("field", "content");
+        int n = maxHits;
+        if (parameters.containsKey("n")) {
+            try {
+                n = Math.max(1, Math.min(maxHits, Integer.parseInt(parameters.get("n"))));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Parameter 'n' must be a number");
+            }
+        }
+        Sort sort = Searcher.parseSort(parameters.get("sort"));
+        Cursor after = null;
+        if (parameters.containsKey("after")) {
+            after = parseCursor(parameters.get("after"), null != sort);
+        }
+        Searcher.Filters filters = Searcher.Filters.of(parameters::get);
+        boolean facets = "true".equals(parameters.get("facets"));
+
+        long start = System.nanoTime();
+        try {
+            StringBuilder json = new StringBuilder();
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                String version = versionOf(searcher.getIndexReader());
+                if (null != after && !after.version().equals(version)) {
+                    throw new IllegalArgumentException("Cursor is stale, since the index has changed; search again without 'after'");
+                }
+                Query query = filters.apply(Searcher.buildQuery(Searcher.newQueryParser(field, analyzer, searcher.getIndexReader()), field, input.trim()));
+                Searcher.Page page = Searcher.searchPage(searcher, query, sort, n, null != after ? after.after() : null, countThreshold, facets);
+                TopDocs topDocs = page.topDocs();
+                StoredFields storedFields = searcher.storedFields();
+
+                json.append("{\"query\":").append(quote(query.toString(field)));
+                json.append(",\"totalHits\":").append(topDocs.totalHits.value);
+                json.append(",\"totalHitsRelation\":").append(quote(topDocs.totalHits.relation.name()));
+                json.append(",\"hits\":[");
+                for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                    ScoreDoc hit = topDocs.scoreDocs[i];
+                    Document document = storedFields.document(hit.doc, Searcher.STORED_FIELDS);
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    json.append("{\"doc\":").append(hit.doc);
+                    if (hit instanceof FieldDoc fieldDoc) {
+                        json.append(",\"score\":null,\"sortValue\":").append(fieldDoc.fields[0]);
+                    } else {
+                        json.append(",\"score\":").append(hit.score);
+                    }
+                    json.append(",\"filename\":").append(quote(document.get("filename")));
+                    json.append(",\"path\":").append(quote(document.get("path")));
+                    json.append(",\"contentType\":").append(quote(document.get("content-type")));
+                    String canonical = document.get("canonical");
+                    if (null != canonical) {
+                        json.append(",\"copyOf\":").append(quote(canonical));
+                    } else {
+                        List<String> copies = Searcher.copiesOf(searcher, document.get("path"));
+                        if (!copies.isEmpty()) {
+                            json.append(",\"copies\":[");
+                            for (int j = 0; j < copies.size(); j++) {
+                                if (j > 0) {
+                                    json.append(',');
+                                }
+                                json.append(quote(copies.get(j)));
+                            }
+                            json.append(']');
+                        }
+                    }
+                    json.append('}');
+                }
+                json.append(']');
+                if (topDocs.scoreDocs.length == n) {
+                    json.append(",\"next\":").append(quote(cursor(version, topDocs.scoreDocs[n - 1])));
+                }
+                if (null != page.facets()) {
+                    json.append(",\"facets\":{");
+                    boolean firstDimension = true;
+                    for (Map.Entry<String, List<Map.Entry<String, Long>>> dimension : page.facets().counts().entrySet()) {
+                        if (!firstDimension) {
+                            json.append(',');
+                        }
+                        firstDimension = false;
+                        json.append(quote(dimension.getKey())).append(":{");
+                        boolean firstValue = true;
+                        for (Map.Entry<String, Long> count : dimension.getValue()) {
+                            if (!firstValue) {
+                                json.append(',');
+                            }
+                            firstValue = false;
+                            json.append(quote(count.getKey())).append(':').append(count.getValue());
+                        }
+                        json.append('}');
+                    }
+                    json.append('}');
+                }
+            } finally {
+                searcherManager.release(searcher);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            queries.increment();
+            totalNanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            Metrics.timer("query").record(elapsed);
+
+            json.append(",\"tookMillis\":").append(String.format(Locale.ROOT, "%.3f", elapsed / 1_000_000.0)).append('}');
+            if (log.isDebugEnabled()) {
+                log.debug("Query \"" + input + "\" took " + elapsed / 1_000_000.0 + " ms");
+            }
+            return json.toString();
+
+        } catch (IOException | ParseException | RuntimeException e) {
+            failedQueries.increment();
+            throw e;
+        }
+    }
+
+    private String stats() {
+        long count = queries.sum();
+        double mean = count > 0 ? totalNanos.sum() / (double) count / 1_000_000.0 : 0.0;
+        return "{\"queries\":" + count
+                + ",\"failedQueries\":" + failedQueries.sum()
+                + ",\"meanMillis\":" + String.format(Locale.ROOT, "%.3f", mean)
+                + ",\"maxMillis\":" + String.format(Locale.ROOT, "%.3f", maxNanos.get() / 1_000_000.0)
+                + "}";
+    }
+
+    /*
+     * Where to continue a search, in the version of the index that was searched.
+     */
+    private record Cursor(String version, ScoreDoc after) {
+    }
+
+    /*
+     * Cursor for continuing after hit, i.e. the version of the index and the
+     * score (or sort value) and document of the hit.
+     */
+    private static String cursor(String version, ScoreDoc hit) {
+        if (hit instanceof FieldDoc fieldDoc) {
+            return version + ":" + fieldDoc.fields[0] + "-" + hit.doc;
+        }
+        return version + ":" + Float.floatToIntBits(hit.score) + "-" + hit.doc;
+    }
+
+    private static Cursor parseCursor(String cursor, boolean sorted) {
+        int colon = cursor.indexOf(':');
+        int dash = cursor.lastIndexOf('-');
+        try {
+            if (colon > 0 && dash > colon + 1) {
+                String version = cursor.substring(0, colon);
+                String value = cursor.substring(colon + 1, dash);
+                int doc = Integer.parseInt(cursor.substring(dash + 1));
+                if (sorted) {
+                    // Sorted by value, then by document
+                    return new Cursor(version, new FieldDoc(doc, Float.NaN, new Object[]{Long.parseLong(value), doc}));
+                }
+                return new Cursor(version, new ScoreDoc(doc, Float.intBitsToFloat(Integer.parseInt(value))));
+            }
+        } catch (NumberFormatException ignore) {
+        }
+        throw new IllegalArgumentException("Parameter 'after' is not a valid cursor");
+    }
+
+    /*
+     * Identifies the point-in-time view of the index that reader has, from its
+     * segments and their deletions and doc values updates. A refreshed reader
+     * has another version, unless nothing changed.
+     */
+    private static String versionOf(IndexReader reader) {
+        long hash = 17L;
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leaf = context.reader();
+            String id;
+            if (leaf instanceof SegmentReader segment) {
+                SegmentCommitInfo info = segment.getSegmentInfo();
+                id = info.info.name + "_" + info.getDelGen() + "_" + info.getDocValuesGen();
+            } else {
+                id = Integer.toHexString(System.identityHashCode(leaf));
+            }
+            hash = 31L * hash + id.hashCode();
+            hash = 31L * hash + leaf.numDocs(); // changes with deletions not yet written
+        }
+        return Long.toHexString(hash);
+    }
+
+    private static Map<String, String> parameters(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (null != query) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    String name = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8);
+                    String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                    parameters.put(name, value);
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Quotes a string as a JSON string literal.
+     */
+    static String quote(String s) {
+        if (null == s) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
@@ -4,8 +4,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
@@ -14,34 +15,297 @@ import org.apache.lucene.store.Directory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 
 
 class Searcher {
     private static Logger log = LogManager.getLogger(Searcher.class);
 
-    private final Directory indexDirectory;
+    // Stored fields needed to present a hit
+    static final Set<String> STORED_FIELDS = Set.of("filename", "path", "content-type", "canonical");
+
+    private static final Set<String> PATH_FIELD = Set.of("path");
+    private static final int MAX_COPIES = 1000;
+    private static final int MAX_FACET_VALUES = 10;
+
+    private final List<Directory> shards;
     private final Analyzer analyzer;
 
+    private final int pageSize;
+    private final int countThreshold; // hits are counted accurately up to this number
+
+    // Ordering, filtering and facets
+    private final Sort sort; // null means by relevance
+    private final Filters filters;
+    private final boolean facets;
+
     Searcher(Directory indexDirectory, Analyzer analyzer) {
-        this.indexDirectory = indexDirectory;
+        this(List.of(indexDirectory), analyzer, new Options(new String[0]));
+    }
+
+    /**
+     * Searches all shards, concurrently if more than one.
+     */
+    Searcher(List<Directory> shards, Analyzer analyzer, Options options) {
+        this.shards = shards;
         this.analyzer = analyzer;
+
+        pageSize = Math.max(1, options.getInt("page-size", 20));
+        countThreshold = Math.max(0, options.getInt("count-threshold", 1000));
+
+        sort = parseSort(options.get("sort", null));
+        filters = Filters.of(name -> options.get(name, null));
+        facets = options.getBoolean("facets", false);
+    }
+
+    /**
+     * Creates a query parser. Query parsers are not thread safe, so
+     * create one per thread.
+     */
+    static QueryParser newQueryParser(String field, Analyzer analyzer) {
+        return new SuffixQueryParser(field, analyzer, Set.of());
+    }
+
+    /**
+     * Creates a query parser, that turns leading wildcard and substring
+     * queries into queries against the suffix fields of the index, if
+     * it has any.
+     */
+    static QueryParser newQueryParser(String field, Analyzer analyzer, IndexReader reader) {
+        Set<String> suffixFields = new HashSet<>();
+        for (String suffixField : List.of(SuffixFields.CONTENT, SuffixFields.FILENAME)) {
+            if (SuffixFields.isIndexed(reader, suffixField)) {
+                suffixFields.add(suffixField);
+            }
+        }
+        return new SuffixQueryParser(field, analyzer, suffixFields);
+    }
+
+    /**
+     * Builds query from user input. Content is searched using the query
+     * language of the query parser, while other fields are matched exactly
+     * or, if input has wildcards (* or ?), by wildcard.
+     */
+    static Query buildQuery(QueryParser queryParser, String field, String input) throws ParseException {
+        if ("content".equals(field)) {
+            return queryParser.parse(input);
+        } else if (input.indexOf('*') >= 0 || input.indexOf('?') >= 0) {
+            if (queryParser instanceof SuffixQueryParser suffixQueryParser) {
+                Query query = suffixQueryParser.rewrite(field, input);
+                if (null != query) {
+                    return query;
+                }
+            }
+            return new WildcardQuery(new Term(field, input));
+        } else {
+            return new TermQuery(new Term(field, input));
+        }
+    }
+
+    /*
+     * Query parser that rewrites wildcard queries, when possible, to use suffix fields.
+     */
+    private static final class SuffixQueryParser extends QueryParser {
+        private final Set<String> suffixFields;
+
+        SuffixQueryParser(String field, Analyzer analyzer, Set<String> suffixFields) {
+            super(field, analyzer);
+            this.suffixFields = suffixFields;
+            setAllowLeadingWildcard(true);
+        }
+
+        /*
+         * Rewrites (normalized) wildcard pattern for field, or returns null.
+         */
+        Query rewrite(String field, String pattern) {
+            String suffixField = SuffixFields.of(field);
+            if (null == suffixField || !suffixFields.contains(suffixField)) {
+                return null;
+            }
+            return SuffixFields.rewrite(suffixField, pattern);
+        }
+
+        @Override
+        protected Query getWildcardQuery(String field, String termStr) throws ParseException {
+            if (termStr.length() > 2 && termStr.startsWith("*")) {
+                // Normalize what is between the wildcards, as the query parser would
+                boolean substring = termStr.endsWith("*");
+                String x = termStr.substring(1, substring ? termStr.length() - 1 : termStr.length());
+                if (x.indexOf('*') < 0 && x.indexOf('?') < 0 && x.indexOf('\\') < 0) {
+                    String normalized = getAnalyzer().normalize(field, x).utf8ToString();
+                    Query query = rewrite(field, "*" + normalized + (substring ? "*" : ""));
+                    if (null != query) {
+                        return query;
+                    }
+                }
+            }
+            return super.getWildcardQuery(field, termStr);
+        }
+    }
+
+    /**
+     * A page of hits, and facets if asked for.
+     */
+    record Page(TopDocs topDocs, Facets facets) {
+    }
+
+    /**
+     * Searches for a page of top hits, by relevance or by sort (if not null),
+     * following after (if not null). Matches are counted while collecting,
+     * accurately up to countThreshold and as a lower bound beyond that, so
+     * queries with many matches need not be evaluated in full -- unless facets
+     * are counted, which needs all matches.
+     */
+    static Page searchPage(IndexSearcher searcher, Query query, Sort sort, int n, ScoreDoc after, int countThreshold, boolean facets) throws IOException {
+        CollectorManager<? extends Collector, ? extends TopDocs> topDocsManager;
+        if (null == sort) {
+            topDocsManager = new TopScoreDocCollectorManager(n, after, countThreshold);
+        } else {
+            topDocsManager = new TopFieldCollectorManager(sort, n, (FieldDoc) after, countThreshold);
+        }
+
+        if (!facets) {
+            return new Page(searcher.search(query, topDocsManager), null);
+        }
+        Object[] results = searcher.search(query, new MultiCollectorManager(topDocsManager, Facets.collectorManager()));
+        return new Page((TopDocs) results[0], (Facets) results[1]);
+    }
+
+    /**
+     * Parses sort order, "size" or "modified" optionally followed by ":asc"
+     * (default is descending, i.e. largest or most recent first).
+     *
+     * @return sort or null for relevance
+     */
+    static Sort parseSort(String spec) {
+        if (null == spec || spec.isBlank() || "relevance".equals(spec)) {
+            return null;
+        }
+        String[] parts = spec.split(":", 2);
+        String field = parts[0].trim();
+        if (!"size".equals(field) && !"modified".equals(field)) {
+            throw new IllegalArgumentException("Cannot sort on " + field + " (expected relevance, size or modified)");
+        }
+        boolean ascending = parts.length > 1 && "asc".equalsIgnoreCase(parts[1].trim());
+        return new Sort(new SortField(field, SortField.Type.LONG, /* reverse? */ !ascending), SortField.FIELD_DOC);
+    }
+
+    /**
+     * Range filters on size and modification time, from doc values.
+     */
+    record Filters(long minSize, long maxSize, long modifiedAfter, long modifiedBefore) {
+        /**
+         * Filters from parameters min-size, max-size (in bytes), modified-after and
+         * modified-before (ISO dates, e.g. 2024-01-31), any of which may be missing.
+         */
+        static Filters of(Function<String, String> parameters) {
+            return new Filters(
+                    parseLong(parameters, "min-size", Long.MIN_VALUE),
+                    parseLong(parameters, "max-size", Long.MAX_VALUE),
+                    parseDate(parameters, "modified-after", Long.MIN_VALUE),
+                    parseDate(parameters, "modified-before", Long.MAX_VALUE)
+            );
+        }
+
+        /**
+         * Query, as filtered.
+         */
+        Query apply(Query query) {
+            if (minSize == Long.MIN_VALUE && maxSize == Long.MAX_VALUE
+                    && modifiedAfter == Long.MIN_VALUE && modifiedBefore == Long.MAX_VALUE) {
+                return query;
+            }
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(query, BooleanClause.Occur.MUST);
+            if (minSize != Long.MIN_VALUE || maxSize != Long.MAX_VALUE) {
+                builder.add(NumericDocValuesField.newSlowRangeQuery("size", minSize, maxSize), BooleanClause.Occur.FILTER);
+            }
+            if (modifiedAfter != Long.MIN_VALUE || modifiedBefore != Long.MAX_VALUE) {
+                builder.add(NumericDocValuesField.newSlowRangeQuery("modified", modifiedAfter, modifiedBefore), BooleanClause.Occur.FILTER);
+            }
+            return builder.build();
+        }
+
+        private static long parseLong(Function<String, String> parameters, String name, long defaultValue) {
+            String value = parameters.apply(name);
+            if (null == value || value.isBlank()) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Parameter '" + name + "' must be a number");
+            }
+        }
+
+        private static long parseDate(Function<String, String> parameters, String name, long defaultValue) {
+            String value = parameters.apply(name);
+            if (null == value || value.isBlank()) {
+                return defaultValue;
+            }
+            try {
+                return LocalDate.parse(value.trim()).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException dtpe) {
+                throw new IllegalArgumentException("Parameter '" + name + "' must be a date, e.g. 2024-01-31");
+            }
+        }
+    }
+
+    /**
+     * Number of matches, as known after a search.
+     */
+    static String describe(TotalHits totalHits) {
+        return (totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? "at least " : "") + totalHits.value;
+    }
+
+    /**
+     * Paths of files found to be copies of the (indexed) file at path, when
+     * indexing with deduplication.
+     */
+    static List<String> copiesOf(IndexSearcher searcher, String path) throws IOException {
+        List<String> paths = new ArrayList<>();
+        if (null == path) {
+            return paths;
+        }
+        TopDocs copies = searcher.search(new TermQuery(new Term("canonical", path)), MAX_COPIES);
+        StoredFields storedFields = searcher.storedFields();
+        for (ScoreDoc copy : copies.scoreDocs) {
+            paths.add(storedFields.document(copy.doc, PATH_FIELD).get("path"));
+        }
+        paths.sort(null);
+        return paths;
     }
 
     void search(String field, PrintWriter out) throws IOException {
-        try (IndexReader indexReader = DirectoryReader.open(indexDirectory)) {
-            IndexSearcher searcher = new IndexSearcher(indexReader);
+        ExecutorService executor = Shards.newExecutor(shards);
+        try (IndexReader indexReader = Shards.openReader(shards)) {
+            IndexSearcher searcher = Shards.newSearcher(indexReader, executor);
 
-            QueryParser contentQueryParser = new QueryParser(field, analyzer);
-            contentQueryParser.setAllowLeadingWildcard(true);
+            QueryParser contentQueryParser = newQueryParser(field, analyzer, indexReader);
 
             Scanner scanner = new Scanner(System.in);
             boolean oneMoreTime = true, debug = false;
+            Query query = null;
+            ScoreDoc after = null; // last hit shown, if there may be more
             do {
                 out.print("? ");
                 out.flush();
 
                 String input = scanner.nextLine().trim();
+                if ("more".equalsIgnoreCase(input)) {
+                    if (null == query || null == after) {
+                        out.println("No more hits");
+                    } else {
+                        after = showPage(searcher, query, after, debug, out);
+                    }
+                    continue;
+                }
                 if ("debug".equalsIgnoreCase(input)) {
                     if (debug) {
                         out.println("debug off");
@@ -56,34 +320,76 @@ class Searcher {
                 oneMoreTime = !"exit".equalsIgnoreCase(input);
 
                 if (oneMoreTime) {
-                    Query query;
-                    if ("content".equals(field)) {
-                        query = contentQueryParser.parse(input);
-                    } else {
-                        query = new TermQuery(new Term(field, input));
-                    }
+                    query = filters.apply(buildQuery(contentQueryParser, field, input));
                     out.println("Searching for: " + query.toString(field));
-
-                    out.println(searcher.count(query) + " matching documents");
                     out.flush();
 
-                    ScoreDoc[] hits = searcher.search(query, 100).scoreDocs;
-
-                    for (ScoreDoc hit : hits) {
-                        Document document = searcher.doc(hit.doc);
-                        out.println("[" + hit.doc + " : " + hit.score + "] " + document.get("filename") + " (" + document.get("content-type") + ") [" + document.get("path") + "]");
-                        if (debug) {
-                            Explanation explanation = searcher.explain(query, hit.doc);
-                            out.println(explanation);
-                        }
-                        out.flush();
-                    }
+                    after = showPage(searcher, query, null, debug, out);
                 }
             } while (oneMoreTime);
         } catch (ParseException pe) {
             String info = "Failed to parse query: " + pe.getMessage();
             pe.printStackTrace(System.out);
             out.println(info);
+        } finally {
+            if (null != executor) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /*
+     * Shows a page of hits, following after (if not null).
+     *
+     * @return last hit shown, or null if there are no more hits
+     */
+    private ScoreDoc showPage(IndexSearcher searcher, Query query, ScoreDoc after, boolean debug, PrintWriter out) throws IOException {
+        Page page = searchPage(searcher, query, sort, pageSize, after, countThreshold, facets && null == after);
+        TopDocs topDocs = page.topDocs();
+        if (null == after) {
+            out.println(describe(topDocs.totalHits) + " matching documents");
+            if (null != page.facets()) {
+                for (Map.Entry<String, List<Map.Entry<String, Long>>> dimension : page.facets().counts().entrySet()) {
+                    out.print("  " + dimension.getKey() + ":");
+                    int shown = 0;
+                    for (Map.Entry<String, Long> count : dimension.getValue()) {
+                        if (shown++ == MAX_FACET_VALUES) {
+                            out.print(" ...");
+                            break;
+                        }
+                        out.print(" " + count.getKey() + " (" + count.getValue() + ")");
+                    }
+                    out.println();
+                }
+            }
+        } else if (topDocs.scoreDocs.length == 0) {
+            out.println("No more hits");
+        }
+
+        StoredFields storedFields = searcher.storedFields();
+        for (ScoreDoc hit : topDocs.scoreDocs) {
+            Document document = storedFields.document(hit.doc, STORED_FIELDS);
+            String canonical = document.get("canonical");
+            if (null != canonical) {
+                out.println("[" + hit.doc + " : " + (hit instanceof FieldDoc fieldDoc ? fieldDoc.fields[0] : hit.score) + "] " + document.get("filename") + " (copy of " + canonical + ") [" + document.get("path") + "]");
+            } else {
+                out.println("[" + hit.doc + " : " + (hit instanceof FieldDoc fieldDoc ? fieldDoc.fields[0] : hit.score) + "] " + document.get("filename") + " (" + Objects.requireNonNullElse(document.get("content-type"), "unknown") + ") [" + document.get("path") + "]");
+                for (String copy : copiesOf(searcher, document.get("path"))) {
+                    out.println("      also at [" + copy + "]");
+                }
+            }
+            if (debug) {
+                Explanation explanation = searcher.explain(query, hit.doc);
+                out.println(explanation);
+            }
+        }
+
+        if (topDocs.scoreDocs.length < pageSize) {
+            out.flush();
+            return null;
         }
+        out.println("(more)");
+        out.flush();
+        return topDocs.scoreDocs[topDocs.scoreDocs.length - 1];
     }
 }
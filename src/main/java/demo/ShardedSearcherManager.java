@@ -0,0 +1,124 @@
+package demo;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Manages a searcher over all shards, as {@link org.apache.lucene.search.SearcherManager}
+ * does for a single index. On refresh, only shards that have changed are reopened.
+ */
+class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+    private final ExecutorService executor;
+
+    ShardedSearcherManager(List<Directory> shards, ExecutorService executor) throws IOException {
+        this(shards.size(), shard -> DirectoryReader.open(shards.get(shard)), executor);
+    }
+
+    /**
+     * Manages a near real-time searcher over shards that are being written,
+     * which sees changes when refreshed, whether committed or not.
+     */
+    ShardedSearcherManager(IndexWriter[] writers, ExecutorService executor) throws IOException {
+        this(writers.length, shard -> DirectoryReader.open(writers[shard]), executor);
+    }
+
+    private interface ReaderOpener {
+        DirectoryReader open(int shard) throws IOException;
+    }
+
+    private ShardedSearcherManager(int shards, ReaderOpener opener, ExecutorService executor) throws IOException {
+        this.executor = executor;
+
+        DirectoryReader[] readers = new DirectoryReader[shards];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = opener.open(i);
+            }
+            current = newSearcher(readers);
+        } finally {
+            // Now referenced by the searcher, if any
+            for (DirectoryReader reader : readers) {
+                if (null != reader) {
+                    reader.decRef();
+                }
+            }
+        }
+    }
+
+    /*
+     * Creates a searcher over readers, which are referenced by (and
+     * released along with) the searcher.
+     */
+    private IndexSearcher newSearcher(DirectoryReader[] readers) throws IOException {
+        return Shards.newSearcher(new ShardsReader(readers), executor);
+    }
+
+    /*
+     * Reader over all shards, that keeps track of the readers of the individual shards.
+     */
+    private static final class ShardsReader extends MultiReader {
+        final DirectoryReader[] readers;
+
+        ShardsReader(DirectoryReader[] readers) throws IOException {
+            super(readers, /* close sub readers */ false);
+            this.readers = readers;
+        }
+    }
+
+    private static DirectoryReader[] readersOf(IndexSearcher searcher) {
+        return ((ShardsReader) searcher.getIndexReader()).readers;
+    }
+
+    @Override
+    protected void decRef(IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+        DirectoryReader[] readers = readersOf(referenceToRefresh);
+        DirectoryReader[] refreshed = new DirectoryReader[readers.length];
+        boolean changed = false;
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                refreshed[i] = DirectoryReader.openIfChanged(readers[i]);
+                changed |= null != refreshed[i];
+            }
+            if (!changed) {
+                return null;
+            }
+
+            DirectoryReader[] _readers = new DirectoryReader[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                _readers[i] = null != refreshed[i] ? refreshed[i] : readers[i];
+            }
+            return newSearcher(_readers);
+
+        } finally {
+            // Newly opened readers are now referenced by the new searcher, if any
+            for (DirectoryReader reader : refreshed) {
+                if (null != reader) {
+                    reader.decRef();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+}
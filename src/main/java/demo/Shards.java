@@ -0,0 +1,76 @@
+package demo;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An index may be split into shards, each a Lucene index of its own in a
+ * subdirectory of the index directory. Files are assigned to shards by hash
+ * of their (absolute) path, so shards may be written in parallel and are of
+ * about the same size. Searches fan out over all shards.
+ */
+final class Shards {
+    static final String PREFIX = "shard-";
+
+    private Shards() {
+    }
+
+    /**
+     * The shard of a file, given its absolute path.
+     */
+    static int of(String path, int shards) {
+        // String.hashCode() is specified, so stable between runs
+        return shards > 1 ? Math.floorMod(path.hashCode(), shards) : 0;
+    }
+
+    /**
+     * Opens a reader over all shards.
+     */
+    static IndexReader openReader(List<Directory> shards) throws IOException {
+        if (shards.size() == 1) {
+            return DirectoryReader.open(shards.get(0));
+        }
+
+        DirectoryReader[] readers = new DirectoryReader[shards.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.open(shards.get(i));
+            }
+            return new MultiReader(readers, /* close sub readers */ true);
+        } catch (IOException | RuntimeException e) {
+            for (DirectoryReader reader : readers) {
+                if (null != reader) {
+                    reader.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a searcher, that searches segments concurrently if there is more
+     * than one shard.
+     */
+    static IndexSearcher newSearcher(IndexReader reader, ExecutorService executor) {
+        return null != executor ? new IndexSearcher(reader, executor) : new IndexSearcher(reader);
+    }
+
+    /**
+     * Executor for searching shards concurrently, or null if there is just one.
+     */
+    static ExecutorService newExecutor(List<Directory> shards) {
+        if (shards.size() == 1) {
+            return null;
+        }
+        int threads = Math.min(shards.size(), Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("search-", 1).daemon(true).factory());
+    }
+}
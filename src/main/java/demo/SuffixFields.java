@@ -0,0 +1,151 @@
+package demo;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Fields holding all suffixes of the terms of another field, so that
+ * leading wildcard and substring queries become term and prefix queries
+ * against the term dictionary, rather than scans through all of it:
+ * <pre>
+ *   *ning   -&gt;  suffix field has term "ning"
+ *   *avtal* -&gt;  suffix field has a term starting with "avtal"
+ * </pre>
+ * Every distinct term of the content contributes its suffixes once per
+ * document, so frequencies are not kept and matches are not scored.
+ */
+final class SuffixFields {
+    static final String CONTENT = "content-suffix";
+    static final String FILENAME = "filename-suffix";
+
+    // Shorter suffixes are not indexed, and queries for them use the original field
+    static final int MIN_LENGTH = 2;
+
+    static final FieldType TYPE = new FieldType();
+
+    static {
+        TYPE.setIndexOptions(IndexOptions.DOCS);
+        TYPE.setTokenized(true);
+        TYPE.setOmitNorms(true);
+        TYPE.freeze();
+    }
+
+    private SuffixFields() {
+    }
+
+    /**
+     * Name of suffix field for field, or null if there is none.
+     */
+    static String of(String field) {
+        return switch (field) {
+            case "content" -> CONTENT;
+            case "filename" -> FILENAME;
+            default -> null;
+        };
+    }
+
+    /**
+     * Passes tokens through, adding their terms to terms.
+     */
+    static TokenStream capture(TokenStream in, final Set<String> terms) {
+        return new TokenFilter(in) {
+            private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+
+            @Override
+            public boolean incrementToken() throws IOException {
+                if (!input.incrementToken()) {
+                    return false;
+                }
+                if (termAttribute.length() >= MIN_LENGTH) {
+                    terms.add(termAttribute.toString());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Tokens for all suffixes (of at least MIN_LENGTH characters) of terms. Terms
+     * are not looked at until the stream is reset, i.e. until the field is indexed,
+     * so they may be captured from a field that precedes it in the document.
+     */
+    static TokenStream suffixes(final Collection<String> terms) {
+        return new TokenStream() {
+            private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+            private Iterator<String> it = null;
+            private String term = null;
+            private int start = 0;
+
+            @Override
+            public void reset() throws IOException {
+                super.reset();
+                it = terms.iterator();
+                term = null;
+            }
+
+            @Override
+            public boolean incrementToken() {
+                while (null == term || term.length() - start < MIN_LENGTH) {
+                    if (!it.hasNext()) {
+                        return false;
+                    }
+                    term = it.next();
+                    start = 0;
+                }
+                clearAttributes();
+                termAttribute.setEmpty().append(term, start, term.length());
+                start++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Rewrites a wildcard pattern of the form *x or *x* (where x has no wildcards
+     * and is normalized already) to a query against suffix field.
+     *
+     * @return query or null if pattern is not of this form
+     */
+    static Query rewrite(String suffixField, String pattern) {
+        if (pattern.length() < 1 + MIN_LENGTH || pattern.charAt(0) != '*') {
+            return null;
+        }
+        boolean substring = pattern.length() >= 2 + MIN_LENGTH && pattern.charAt(pattern.length() - 1) == '*';
+        String x = pattern.substring(1, substring ? pattern.length() - 1 : pattern.length());
+        if (x.length() < MIN_LENGTH || x.indexOf('*') >= 0 || x.indexOf('?') >= 0 || x.indexOf('\\') >= 0) {
+            return null;
+        }
+
+        Term term = new Term(suffixField, x);
+        return new ConstantScoreQuery(substring ? new PrefixQuery(term) : new TermQuery(term));
+    }
+
+    /**
+     * Whether some document in the index has field.
+     */
+    static boolean isIndexed(IndexReader reader, String field) {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(field);
+            if (null != fieldInfo && fieldInfo.getIndexOptions() != IndexOptions.NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
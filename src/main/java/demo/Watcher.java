@@ -0,0 +1,358 @@
+package demo;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the index up to date with a directory hierarchy, by watching it for
+ * changes after an initial (incremental) crawl.
+ * <p/>
+ * Every directory is registered with a {@link WatchService}. Events are
+ * collected until no more have arrived for a while, so that a burst of events
+ * (e.g. a file being written in several steps, or a directory being copied)
+ * becomes a single update per file. Changes are then applied to long-lived
+ * index writers and published by reopening a near real-time searcher, which
+ * is served if asked to. Changes are committed, and so visible to other
+ * processes, at most every so often.
+ * <p/>
+ * Events may be lost, when the queue of events overflows or if the file system
+ * does not deliver events (e.g. for some network mounts), so the hierarchy is
+ * also rescanned, incrementally, on overflow and periodically.
+ */
+class Watcher {
+    private static Logger log = LogManager.getLogger(Watcher.class);
+
+    private final List<Directory> shards;
+    private final Indexer indexer;
+    private final Scanner scanner;
+    private final SearchService service; // null if not serving
+
+    private final long delay; // milliseconds without events, before applying changes
+    private final long maxDelay; // milliseconds, at most, before applying changes
+    private final long commitInterval; // milliseconds
+    private final long rescanInterval; // milliseconds, <= 0 to only rescan on overflow
+
+    /**
+     * Watches using indexer, which has to index incrementally, and serves
+     * searches using service unless null.
+     */
+    Watcher(List<Directory> shards, Indexer indexer, Scanner scanner, SearchService service, Options options) {
+        this.shards = shards;
+        this.indexer = indexer;
+        this.scanner = scanner;
+        this.service = service;
+
+        delay = Math.max(10L, options.getLong("watch-delay", 500L));
+        maxDelay = 10 * delay;
+        commitInterval = Math.max(0L, options.getLong("commit-interval", 10L)) * 1000L;
+        rescanInterval = options.getLong("rescan-interval", 600L) * 1000L;
+    }
+
+    /**
+     * Watches until the process is terminated.
+     */
+    void watch(File directoryToWatch, PrintWriter out) throws IOException, InterruptedException {
+        final Path root = directoryToWatch.toPath().toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException("Not a directory: " + root);
+        }
+
+        IndexWriter[] indexWriters = indexer.openWriters();
+        CountDownLatch stopped = new CountDownLatch(1);
+        try {
+            // Not a resource of a try-with-resources, since the shutdown hook closes it as well
+            final WatchService watchService = root.getFileSystem().newWatchService();
+            try {
+                // Registered before crawling, so that changes made while crawling are seen
+                Map<WatchKey, Path> keys = new HashMap<>();
+                register(watchService, root, keys, null);
+
+                indexer.indexDirectory(root.toFile(), out, indexWriters);
+
+                // Searches in this process see changes without waiting for them to be committed
+                ReferenceManager<IndexSearcher> searcherManager = null;
+                if (null != service) {
+                    if (indexWriters.length == 1) {
+                        searcherManager = new SearcherManager(indexWriters[0], /* default searcher factory */ null);
+                    } else {
+                        searcherManager = new ShardedSearcherManager(indexWriters, Shards.newExecutor(shards));
+                    }
+                    final ReferenceManager<IndexSearcher> _searcherManager = searcherManager;
+                    Thread.ofPlatform().name("search-service").daemon(true).start(() -> {
+                        try {
+                            service.serve(_searcherManager, out);
+                        } catch (IOException ioe) {
+                            String info = "Failed to serve searches: " + ioe.getMessage();
+                            log.warn(info, ioe);
+                        } catch (InterruptedException ignore) {
+                        }
+                    });
+                }
+
+                // Stops watching, and waits until pending changes have been committed
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        watchService.close();
+                        stopped.await(30, TimeUnit.SECONDS);
+                    } catch (IOException | InterruptedException ignore) {
+                    }
+                }));
+
+                out.println("Watching " + root + " (" + keys.size() + " directories)");
+                out.flush();
+
+                watch(root, watchService, keys, indexWriters, searcherManager, out);
+            } finally {
+                watchService.close();
+            }
+        } finally {
+            Indexer.closeWriters(indexWriters);
+            stopped.countDown();
+        }
+    }
+
+    private void watch(
+            Path root, WatchService watchService, Map<WatchKey, Path> keys,
+            IndexWriter[] indexWriters, ReferenceManager<IndexSearcher> searcherManager, // null if not serving
+            PrintWriter out
+    ) throws IOException, InterruptedException {
+
+        // Paths that have changed, in whatever way, since changes were last applied
+        Set<Path> pending = new LinkedHashSet<>();
+        long firstEvent = 0L;
+        long lastEvent = 0L;
+
+        boolean rescan = false;
+        boolean uncommitted = false;
+        long lastCommit = System.currentTimeMillis();
+        long lastRescan = lastCommit;
+
+        while (true) {
+            // Sleep until something has to be done, unless woken by events
+            long now = System.currentTimeMillis();
+            long wakeUp = Long.MAX_VALUE;
+            if (!pending.isEmpty()) {
+                wakeUp = Math.min(lastEvent + delay, firstEvent + maxDelay);
+            } else if (uncommitted) {
+                wakeUp = lastCommit + commitInterval;
+            }
+            if (rescanInterval > 0) {
+                wakeUp = Math.min(wakeUp, lastRescan + rescanInterval);
+            }
+
+            WatchKey key;
+            try {
+                key = wakeUp == Long.MAX_VALUE
+                        ? watchService.take()
+                        : watchService.poll(Math.max(0L, wakeUp - now), TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException cwse) {
+                break; // terminating
+            }
+
+            // Collect events, from all directories that have some
+            while (null != key) {
+                Path directory = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Metrics.counter("watch_events").increment();
+                    if (event.kind() == OVERFLOW || null == directory) {
+                        rescan = true;
+                        continue;
+                    }
+
+                    if (pending.isEmpty()) {
+                        firstEvent = System.currentTimeMillis();
+                    }
+                    lastEvent = System.currentTimeMillis();
+
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        // Files may have been created before the directory was registered
+                        register(watchService, path, keys, pending);
+                    } else {
+                        pending.add(path);
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key); // directory is gone
+                }
+                try {
+                    key = watchService.poll();
+                } catch (ClosedWatchServiceException cwse) {
+                    key = null;
+                }
+            }
+
+            now = System.currentTimeMillis();
+            if (rescan || (rescanInterval > 0 && now - lastRescan >= rescanInterval)) {
+                // Whatever is pending is found by the rescan as well
+                pending.clear();
+                commit(indexWriters);
+                rescan(root, watchService, keys, indexWriters, out);
+                refresh(searcherManager);
+                rescan = false;
+                uncommitted = false;
+                lastCommit = lastRescan = System.currentTimeMillis();
+                continue;
+            }
+
+            if (!pending.isEmpty() && (now - lastEvent >= delay || now - firstEvent >= maxDelay)) {
+                apply(root, pending, indexWriters, out);
+                refresh(searcherManager);
+                pending.clear();
+                uncommitted = true;
+            }
+
+            if (uncommitted && now - lastCommit >= commitInterval) {
+                commit(indexWriters);
+                uncommitted = false;
+                lastCommit = now;
+            }
+        }
+
+        // Terminating, so keep what we have
+        if (!pending.isEmpty()) {
+            apply(root, pending, indexWriters, out);
+        }
+        commit(indexWriters);
+    }
+
+    /*
+     * Registers directory and its subdirectories (but not our own) with the
+     * watch service. If files is given, files found are added to it.
+     */
+    private void register(WatchService watchService, Path directory, Map<WatchKey, Path> keys, Set<Path> files) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (scanner.isIgnored(dir.toFile())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    try {
+                        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                    } catch (IOException ioe) {
+                        // E.g. out of inotify watches, in which case changes are found when rescanning
+                        String info = "Failed to watch directory " + dir + ": " + ioe.getMessage();
+                        log.warn(info);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (null != files && attributes.isRegularFile()) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ioe) {
+            String info = "Failed to watch directory " + directory + ": " + ioe.getMessage();
+            log.warn(info);
+        }
+    }
+
+    /*
+     * Applies changes to paths, re-indexing files that exist and removing
+     * documents for those that do not.
+     */
+    private void apply(Path root, Set<Path> paths, IndexWriter[] indexWriters, PrintWriter out) throws IOException {
+        long start = System.nanoTime();
+
+        List<Path> files = new ArrayList<>();
+        long removed = 0L;
+        for (Path path : paths) {
+            if (Files.isRegularFile(path)) {
+                // Entries of a changed container are indexed anew, and may since have been removed from it
+                String absolutePath = path.toString();
+                indexWriters[Shards.of(absolutePath, indexWriters.length)].deleteDocuments(new Term("container", absolutePath));
+                files.add(path);
+            } else if (!Files.isDirectory(path)) {
+                remove(path, indexWriters);
+                removed++;
+            }
+        }
+
+        long updated = scanner.scanFiles(files, ConcurrentHashMap.newKeySet(), (path, entry, contentType, major, minor, reader) -> {
+            indexer.indexFile(indexWriters, root, path, entry, contentType, major, reader, /* update */ true);
+            return true;
+        });
+        Metrics.timer("watch_apply").recordSince(start);
+
+        out.println("Updated " + updated + " and removed " + removed + " file(s) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        out.flush();
+    }
+
+    /*
+     * Removes documents for a path that no longer exists, which may have
+     * been a file or a directory.
+     */
+    private static void remove(Path path, IndexWriter[] indexWriters) throws IOException {
+        String absolutePath = path.toString();
+        indexWriters[Shards.of(absolutePath, indexWriters.length)].deleteDocuments(new Term("path", absolutePath), new Term("container", absolutePath));
+        for (IndexWriter indexWriter : indexWriters) {
+            indexWriter.deleteDocuments(new PrefixQuery(new Term("path", absolutePath + File.separator)));
+        }
+    }
+
+    /*
+     * Brings the index up to date with the hierarchy, after events may have
+     * been lost, and watches directories that are not watched already.
+     */
+    private void rescan(Path root, WatchService watchService, Map<WatchKey, Path> keys, IndexWriter[] indexWriters, PrintWriter out) throws IOException {
+        long start = System.nanoTime();
+        register(watchService, root, keys, null);
+        indexer.indexDirectory(root.toFile(), new PrintWriter(Writer.nullWriter()), indexWriters);
+        Metrics.timer("watch_rescan").recordSince(start);
+
+        out.println("Rescanned " + root + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        out.flush();
+    }
+
+    private static void commit(IndexWriter[] indexWriters) throws IOException {
+        long start = System.nanoTime();
+        for (IndexWriter indexWriter : indexWriters) {
+            indexWriter.commit();
+        }
+        Metrics.timer("commit").recordSince(start);
+    }
+
+    private static void refresh(ReferenceManager<IndexSearcher> searcherManager) throws IOException {
+        if (null == searcherManager) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            searcherManager.maybeRefreshBlocking();
+        } catch (AlreadyClosedException ignore) {
+            // Closed by the search service, when terminating
+        }
+        Metrics.timer("refresh").recordSince(start);
+    }
+}
@@ -6,7 +6,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.nio.CharBuffer;
+import java.text.Normalizer;
 
 /**
  * Wraps a Reader in order to filter characters into an indexable stream. Will
@@ -16,30 +16,82 @@ import java.nio.CharBuffer;
  * <p/>
  * By sticking to the (UTF-8) character subset 0-255, we may jump from
  * characters to bytes and vice verca.
+ * <p/>
+ * Optionally, characters of the whole Basic Multilingual Plane are mapped,
+ * so that e.g. Greek, Cyrillic and CJK text is retained (lower cased) rather
+ * than replaced with spaces. Characters outside of the BMP (surrogate pairs)
+ * are then passed through as is, and combining marks are composed with the
+ * preceding character where possible (so that a decomposed "a" + diaeresis
+ * is retained as a composed character) and dropped otherwise. Composition
+ * happens within a single read, so a mark separated from its character by
+ * a read boundary is dropped.
  */
 public class BinaryFilterReader extends FilterReader {
     private static final Logger log = LogManager.getLogger(BinaryFilterReader.class);
 
     private static final char SPACE = StringsFilterInputStream.SPACE;
+
+    // Shared (and never modified) tables, indexed by character
     private static final char[] BYTE_MAP = StringsFilterInputStream.BYTE_MAP;
 
-    // Internals
-    private CharBuffer map = null;
+    private static final char NO_MAPPING = '\uFFFF'; // in BMP map, for characters needing special treatment
+
+    // Not built unless used
+    private static final class Bmp {
+        static final char[] MAP = bmpMap();
+    }
+
+    private final boolean fullBmp;
+    private final char[] single = new char[1];
 
     /**
-     * Create a new filtered reader.
+     * Create a new filtered reader, retaining only (a subset of) characters 0-255.
      *
      * @param in a Reader object providing the underlying stream.
      * @throws NullPointerException if <code>in</code> is <code>null</code>
      */
     public BinaryFilterReader(Reader in) {
+        this(in, false);
+    }
+
+    /**
+     * Create a new filtered reader.
+     *
+     * @param in      a Reader object providing the underlying stream.
+     * @param fullBmp if true, retain letters and digits of the whole BMP (lower cased)
+     * @throws NullPointerException if <code>in</code> is <code>null</code>
+     */
+    public BinaryFilterReader(Reader in, boolean fullBmp) {
         super(in);
+        this.fullBmp = fullBmp;
+    }
 
-        // Generate fast byte map
-        map = CharBuffer.allocate(BYTE_MAP.length);
-        for (int i = 0; i < BYTE_MAP.length; i++) {
-            map.put(i, BYTE_MAP[i]);
+    /*
+     * Characters 0-255 are mapped as by BYTE_MAP, other letters and digits
+     * are lower cased, surrogates and combining marks are marked for special
+     * treatment and everything else becomes a space.
+     */
+    private static char[] bmpMap() {
+        char[] map = new char[Character.MAX_VALUE + 1];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (c < BYTE_MAP.length && BYTE_MAP[c] != SPACE) {
+                map[c] = BYTE_MAP[c];
+            } else if (Character.isSurrogate((char) c) || isCombiningMark(c)) {
+                map[c] = NO_MAPPING;
+            } else if (Character.isLetterOrDigit(c)) {
+                int lower = Character.toLowerCase(c);
+                map[c] = lower <= Character.MAX_VALUE ? (char) lower : (char) c;
+            } else {
+                map[c] = SPACE;
+            }
         }
+        map[NO_MAPPING] = NO_MAPPING; // a non-character, but it has to map to something
+        return map;
+    }
+
+    private static boolean isCombiningMark(int c) {
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK || type == Character.ENCLOSING_MARK;
     }
 
 
@@ -49,8 +101,11 @@ public class BinaryFilterReader extends FilterReader {
      * @throws IOException If an I/O error occurs
      */
     public int read() throws IOException {
-        int c = in.read();
-        return (c >= 0 && c < 256) ? map.get(c) : SPACE;
+        int num;
+        while ((num = read(single, 0, 1)) == 0) {
+            // a combining mark that was dropped, try next
+        }
+        return num < 0 ? -1 : single[0];
     }
 
 
@@ -70,12 +125,55 @@ public class BinaryFilterReader extends FilterReader {
      * @throws IOException If an I/O error occurs
      */
     public int read(char cbuf[], int off, int len) throws IOException {
-        int num = in.read(cbuf, off, len);
-        for (int i = 0; i < num; i++) {  // also guarantees num > 0
-            int c = (int) cbuf[off + i];
-            char mapped = (c >= 0 && c < 256) ? map.get(c) : SPACE;
-            cbuf[off + i] = mapped;
+        if (!fullBmp) {
+            int num = in.read(cbuf, off, len);
+            final char[] map = BYTE_MAP;
+            for (int i = off, end = off + num; i < end; i++) {  // also guarantees num > 0
+                char c = cbuf[i];
+                cbuf[i] = c < map.length ? map[c] : SPACE;
+            }
+            return num;
         }
+
+        int num;
+        do {
+            num = in.read(cbuf, off, len);
+            if (num <= 0) {
+                return num;
+            }
+            num = mapBmp(cbuf, off, num);
+        } while (num == 0); // only dropped combining marks, so far
         return num;
     }
+
+    /*
+     * Maps characters in place, possibly compacting the array when combining
+     * marks are composed with preceding characters. Returns the number of
+     * characters remaining.
+     */
+    private static int mapBmp(char[] cbuf, int off, int num) {
+        final char[] map = Bmp.MAP;
+        int w = off;
+        for (int r = off, end = off + num; r < end; r++) {
+            char c = cbuf[r];
+            char mapped = map[c];
+            if (mapped != NO_MAPPING) {
+                cbuf[w++] = mapped;
+            } else if (Character.isSurrogate(c)) {
+                cbuf[w++] = c;
+            } else if (w > off && cbuf[w - 1] != SPACE) {
+                // Combining mark, try to compose with preceding character
+                String composed = Normalizer.normalize(new String(new char[]{cbuf[w - 1], c}), Normalizer.Form.NFC);
+                if (composed.length() == 1) {
+                    char m = map[composed.charAt(0)];
+                    if (m != NO_MAPPING && m != SPACE) {
+                        cbuf[w - 1] = m;
+                    }
+                }
+                // otherwise dropped
+            }
+            // else dropped
+        }
+        return w - off;
+    }
 }
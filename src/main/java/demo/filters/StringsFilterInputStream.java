@@ -6,8 +6,22 @@ import org.apache.logging.log4j.Logger;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.CharBuffer;
-
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Extracts strings from binary content, much like strings(1): runs of
+ * interesting bytes (letters, digits and a few more, as given by BYTE_MAP)
+ * of at least shortestToken and at most longestToken bytes are retained,
+ * each followed by a single space, while everything else is dropped.
+ * Upper case letters are replaced by their lower cased counterparts.
+ * <p/>
+ * Input is processed in large blocks. Output is text encoded as
+ * windows-1252 (see {@link #CHARSET}).
+ */
 public class StringsFilterInputStream extends FilterInputStream {
     static final char SPACE = (char) 32;
     static final char[] BYTE_MAP = {
@@ -62,40 +76,100 @@ public class StringsFilterInputStream extends FilterInputStream {
             // .. ü ..
             SPACE, SPACE, SPACE, '\u00FC', SPACE, SPACE, SPACE                     // 249 - 255
     };
+
+    /**
+     * The encoding of the output of this stream.
+     */
+    public static final Charset CHARSET = Charset.forName("windows-1252");
+
+    // Output byte for every input byte, SPACE if not interesting. Shared and never modified.
+    private static final byte[] OUTPUT_MAP = outputMap();
+
     private static final Logger log = LogManager.getLogger(StringsFilterInputStream.class);
     private static final int EOF = -1;
-    // Parameters
-    private int longestToken;
-    private int shortestToken;
+    private static final int BLOCK_SIZE = 256 * 1024;
 
-    // Internals
-    private CharBuffer map = null;
-    private CharBuffer buffer = null;
+    // Parameters
+    private final int longestToken;
+    private final int shortestToken;
+
+    // Input, read in blocks
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockPosition = 0;
+    private int blockLimit = 0;
+    private boolean endOfInput = false;
+
+    // Current "word", which is dropped if it gets longer than longestToken
+    private final byte[] word;
+    private int wordLength = 0;
     private boolean withinLongWord = false;
 
-    StringsFilterInputStream(
+    // Output that did not fit into the caller's buffer
+    private final byte[] pending;
+    private int pendingPosition = 0;
+    private int pendingLimit = 0;
+
+    private final byte[] single = new byte[1];
+
+    /**
+     * Extracts strings from a stream.
+     *
+     * @param shortestToken shortest sequence of interesting bytes to retain (at least 1)
+     * @param longestToken  longest sequence of interesting bytes to retain (at least 3)
+     */
+    public StringsFilterInputStream(
             InputStream inputStream,
             int shortestToken,
-            int longestToken) throws IOException {
+            int longestToken) {
 
         super(inputStream);
 
         this.shortestToken = Math.max(1, shortestToken); // at least one byte
-        this.longestToken = Math.max(3, longestToken); // minimally three bytes
+        this.longestToken = Math.max(3, Math.max(this.shortestToken, longestToken)); // minimally three bytes
+
+        word = new byte[this.longestToken];
+        pending = new byte[this.longestToken + /* trailing space */ 1];
+    }
+
+    /**
+     * Extracts strings from a channel, e.g. a FileChannel.
+     */
+    public StringsFilterInputStream(
+            FileChannel channel,
+            int shortestToken,
+            int longestToken) {
+
+        this(Channels.newInputStream(channel), shortestToken, longestToken);
+    }
+
+    /**
+     * Extracts strings from a file.
+     */
+    public StringsFilterInputStream(
+            Path path,
+            int shortestToken,
+            int longestToken) throws IOException {
 
-        // Initiate internal work buffer
-        buffer = CharBuffer.allocate(this.longestToken + /* algorithm slack */ 2);
-        buffer.limit(0); // initially
+        this(FileChannel.open(path, StandardOpenOption.READ), shortestToken, longestToken);
+    }
 
-        // Generate fast byte map
-        map = CharBuffer.allocate(BYTE_MAP.length);
+    private static byte[] outputMap() {
+        byte[] map = new byte[BYTE_MAP.length];
         for (int i = 0; i < BYTE_MAP.length; i++) {
-            map.put(i, BYTE_MAP[i]);
+            char c = BYTE_MAP[i];
+            if (c < 256) {
+                map[i] = (byte) c;
+            } else {
+                // e.g. the euro sign, at 0x80 in windows-1252
+                byte[] encoded = String.valueOf(c).getBytes(CHARSET);
+                map[i] = encoded.length == 1 ? encoded[0] : (byte) SPACE;
+            }
         }
+        return map;
     }
 
     public int available() throws IOException {
-        return buffer.remaining() + in.available();
+        return pendingLimit - pendingPosition;
     }
 
     public void close() throws IOException {
@@ -103,113 +177,152 @@ public class StringsFilterInputStream extends FilterInputStream {
     }
 
     public int read() throws IOException {
-        // We can be in these states:
-        //  1. No bytes in buffer, in which case we will read from the stream
-        //  2. Bytes in the buffer - maximally longestToken many
-        if (buffer.hasRemaining()) {
-            // We have bytes in the buffer, return next byte...
-            return buffer.get();
+        int num;
+        while ((num = read(single, 0, 1)) == 0) {
+            // nothing yet
+        }
+        return num == EOF ? EOF : single[0] & 0xFF;
+    }
 
-        } else {
-            // No bytes in the buffer, read up to longest token many
-            buffer.clear();
+    public int read(byte[] bytes) throws IOException {
+        return read(bytes, /* offset */ 0, bytes.length);
+    }
+
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (off < 0) {
+            throw new ArrayIndexOutOfBoundsException("Illegal offset " + off);
+        }
+        if (len < 0) {
+            throw new ArrayIndexOutOfBoundsException("Illegal length " + len);
+        }
+        if (off + len > bytes.length) {
+            throw new ArrayIndexOutOfBoundsException("Illegal offset " + off + " and length " + len);
+        }
+        if (len == 0) {
+            return 0;
+        }
 
-            while (buffer.position() < buffer.capacity()) {
-                int b = in.read();
+        final int start = off;
+        final int end = off + len;
 
-                if (EOF == (byte) b) {
-                    // No more bytes to read from the input stream and the
-                    // current "word" fits the length constraints.
-                    // Prepare buffer for read and (possibly) return first byte.
+        // Output left over from last call
+        off = drainPending(bytes, off, end);
 
-                    if (buffer.position() >= shortestToken) {
-                        buffer.flip();
-                        return buffer.get();
+        final byte[] map = OUTPUT_MAP;
+        final byte space = (byte) SPACE;
 
-                    } else {
-                        buffer.limit(0);
-                        return EOF;
+        while (off < end) {
+            if (blockPosition == blockLimit) {
+                if (endOfInput || !fill()) {
+                    // Last word, if any
+                    if (wordLength >= shortestToken && !withinLongWord) {
+                        off = emit(bytes, off, end);
                     }
+                    wordLength = 0;
+                    break;
                 }
+            }
 
-                // Map read byte (if possible)
-                char mappedByte = map.get(b);
-
-                if (buffer.position() > longestToken) {
-                    // We have an additional character (interesting or not) which will
-                    // effectively exceed the longestToken count for the current "word".
-                    // Skip this "word", i.e. this buffer.
-                    buffer.clear();
-                    withinLongWord = true;
+            // Tight loop over the current block
+            final byte[] _block = block;
+            int p = blockPosition;
+            final int limit = blockLimit;
+            while (p < limit) {
+                byte b = map[_block[p++] & 0xFF];
+                if (b != space) {
+                    if (wordLength < longestToken) {
+                        word[wordLength++] = b;
+                    } else {
+                        withinLongWord = true; // drop it
+                    }
                     continue;
                 }
 
-
-                if (/* uninteresting byte */ SPACE == mappedByte) {
-                    withinLongWord = false;
-
-                    if (buffer.position() < shortestToken) {
-                        // We found an uninteresting character in the
-                        // stream before reaching shortestToken length.
-                        // Start all over again...
-                        buffer.clear();
-                        continue;
-
-                    } else {
-                        // Add single SPACE to buffer and start reading
-                        buffer.put(SPACE); // increments position
-                        buffer.flip();
-                        return buffer.get();
-                    }
+                // End of word
+                if (wordLength >= shortestToken && !withinLongWord) {
+                    off = emit(bytes, off, end);
                 }
+                wordLength = 0;
+                withinLongWord = false;
 
-                if (withinLongWord) {
-                    // We have an additional character (interesting or not) which will
-                    // effectively exceed the longestToken count for the current "word".
-                    // Skip this "word", i.e. this buffer.
-                    buffer.clear();
-                    continue;
+                if (off == end || pendingPosition < pendingLimit) {
+                    break; // caller's buffer is full
                 }
+            }
+            blockPosition = p;
 
-                // Store interesting byte in the buffer
-                buffer.put(mappedByte); // increments position
+            if (pendingPosition < pendingLimit) {
+                break;
             }
-            buffer.flip();
-            return buffer.get();
         }
-    }
 
-    public int read(byte[] bytes, int off, int len) throws IOException {
-        if (off < 0) {
-            throw new ArrayIndexOutOfBoundsException("Illegal offset " + off);
+        int num = off - start;
+        if (num == 0 && endOfInput && blockPosition == blockLimit && pendingPosition == pendingLimit) {
+            return EOF;
         }
-        if (len < 0) {
-            throw new ArrayIndexOutOfBoundsException("Illegal length " + len);
-        }
-        if (off + len > bytes.length) {
-            throw new ArrayIndexOutOfBoundsException("Illegal offset " + off + " and length " + len);
+        return num;
+    }
+
+    /*
+     * Writes current word, and a space, to bytes -- or as much as fits, keeping
+     * the rest pending. Returns new offset into bytes.
+     */
+    private int emit(byte[] bytes, int off, int end) {
+        int room = end - off;
+        if (room > wordLength) {
+            System.arraycopy(word, 0, bytes, off, wordLength);
+            off += wordLength;
+            bytes[off++] = (byte) SPACE;
+            return off;
         }
 
-        int i;
-        for (i = 0; i < len; i++) {
-            int readByte = read();
-            if (EOF == readByte) {
-                break;
-            }
-            bytes[off++] = (byte) readByte;
+        System.arraycopy(word, 0, pending, 0, wordLength);
+        pending[wordLength] = (byte) SPACE;
+        pendingPosition = 0;
+        pendingLimit = wordLength + 1;
+        return drainPending(bytes, off, end);
+    }
+
+    private int drainPending(byte[] bytes, int off, int end) {
+        int num = Math.min(end - off, pendingLimit - pendingPosition);
+        if (num > 0) {
+            System.arraycopy(pending, pendingPosition, bytes, off, num);
+            pendingPosition += num;
+            off += num;
         }
-        return i;
+        return off;
     }
 
-    public long skip(long length) throws IOException {
-        while (buffer.hasRemaining() && length-- > 0) {
-            buffer.position(buffer.position() + 1);
+    /*
+     * Reads next block of input. Returns false at end of input.
+     */
+    private boolean fill() throws IOException {
+        int num;
+        do {
+            num = in.read(block, 0, block.length);
+        } while (num == 0);
+
+        if (num < 0) {
+            endOfInput = true;
+            blockPosition = blockLimit = 0;
+            return false;
         }
-        return in.skip(length);
+        blockPosition = 0;
+        blockLimit = num;
+        return true;
     }
 
-    public int read(byte[] bytes) throws IOException {
-        return read(bytes, /* offset */ 0, bytes.length);
+    public long skip(long length) throws IOException {
+        long skipped = 0L;
+        byte[] scratch = new byte[(int) Math.min(8192L, Math.max(1L, length))];
+        while (skipped < length) {
+            int num = read(scratch, 0, (int) Math.min(scratch.length, length - skipped));
+            if (num == EOF) {
+                break;
+            }
+            skipped += num;
+        }
+        return skipped;
     }
 
     public boolean markSupported() {